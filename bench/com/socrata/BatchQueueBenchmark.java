@@ -0,0 +1,111 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BatchQueue.add() throughput with 1, 4, 16 and 64 producer
+ * threads adding at once, while background flushes drain the queue every
+ * 500 entries. Nothing is sent: the flusher only counts what it drained,
+ * and the run fails if any entry went missing.
+ *
+ * Build as for FanOutBenchmark, then run:
+ *
+ *   java -cp "build:lib/*" com.socrata.BatchQueueBenchmark [entries]
+ */
+public class BatchQueueBenchmark {
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        for ( int run = 0; run <= 3; run++ ) {
+            for ( int producers : new int[] { 1, 4, 16, 64 } ) {
+                long nanos = measure(producers, entries / producers);
+                if ( run > 0 ) {
+                    // Run 0 only warms up the JIT
+                    int added = entries / producers * producers;
+                    System.out.println("run " + run + ", " + producers + " producers: " + added +
+                            " adds in " + nanos / 1000000 + "ms, " +
+                            (added * 1000000000L / Math.max(1, nanos)) + " adds/s");
+                }
+            }
+        }
+        Workers.fanOutExecutor().shutdown();
+    }
+
+    /**
+     * @return nanoseconds from starting the producers until every entry
+     *         was added and drained
+     */
+    private static long measure(int producers, final int perProducer) throws Exception {
+        final AtomicLong drained = new AtomicLong();
+        final BatchQueue[] holder = new BatchQueue[1];
+        final BatchQueue queue = new BatchQueue(500, 0, 0, new Runnable() {
+            public void run() {
+                // Only one thread may drain at a time, as in ApiBase
+                synchronized ( holder ) {
+                    drained.addAndGet(holder[0].drain().size());
+                }
+            }
+        }, null);
+        holder[0] = queue;
+        final BatchRequest request = new BatchRequest("POST", "/views/abcd-1234/rows.json",
+                "{\"value\":\"bench\"}");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        for ( int i = 0; i < producers; i++ ) {
+            Thread producer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for ( int j = 0; j < perProducer; j++ ) {
+                            queue.add(request);
+                        }
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+            producer.start();
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        long expected = (long) producers * perProducer;
+        // Take whatever the last background flush left behind
+        while ( drained.get() + queue.size() < expected ) {
+            Thread.yield();
+        }
+        synchronized ( holder ) {
+            drained.addAndGet(queue.drain().size());
+        }
+        long nanos = System.nanoTime() - started;
+        if ( drained.get() != expected ) {
+            throw new IllegalStateException("Drained " + drained.get() + " of " + expected +
+                    ", " + queue.size() + " left");
+        }
+        return nanos;
+    }
+}
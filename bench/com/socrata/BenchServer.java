@@ -0,0 +1,102 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for the Socrata API used by the benchmarks. Every
+ * request is answered after a fixed delay, standing in for server and
+ * network latency: GETs with a small dataset, POSTs to /batches with an
+ * empty result list and other POSTs with an empty object.
+ */
+class BenchServer {
+    private final HttpServer server;
+
+    private BenchServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @param port the port to listen on
+     * @param delayMillis how long to wait before answering each request
+     * @return the running server
+     */
+    static BenchServer start(int port, final long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while ( in.read(buffer) != -1 ) {
+                    // Drain the request body
+                }
+                if ( delayMillis > 0 ) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String body = "{\"id\":\"abcd-1234\",\"name\":\"bench\"}";
+                if ( "POST".equals(exchange.getRequestMethod()) ) {
+                    body = exchange.getRequestURI().getPath().startsWith("/batches") ? "[]" : "{}";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        // One thread per exchange, so the stand-in never limits concurrency
+        server.setExecutor(Executors.newCachedThreadPool(Workers.daemonThreadFactory("bench-server")));
+        server.start();
+        return new BenchServer(server);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @param port the port the stand-in listens on
+     * @param extra further settings, one "key: value" per line
+     * @return settings pointing the client at the stand-in
+     */
+    static ResourceBundle properties(int port, String extra) throws IOException {
+        return new PropertyResourceBundle(new StringReader(
+                "username: bench\npassword: bench\napp_token: bench\n" +
+                "scheme: http\nhostname: localhost\nhostport: " + port + "\n" +
+                "web_host: http://localhost\n" +
+                "max_connections: 1000\nmax_connections_per_route: 1000\n" +
+                "request_metrics: false\n" + extra));
+    }
+}
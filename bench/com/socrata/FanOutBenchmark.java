@@ -0,0 +1,75 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares Dataset.addRows() throughput on the fixed worker pool against
+ * virtual threads (Workers.setVirtualThreads), with every request held
+ * for a fixed latency by a local stand-in server. The pool caps the
+ * number of calls in flight at its thread count; virtual threads do not.
+ *
+ * Build and run from the repository root:
+ *
+ *   javac -d build -cp "lib/*" $(find src bench -name '*.java')
+ *   java -cp "build:lib/*" com.socrata.FanOutBenchmark [rows] [latencyMillis]
+ */
+public class FanOutBenchmark {
+    private static final int PORT = 18901;
+
+    @SuppressWarnings("rawtypes")
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+        BenchServer server = BenchServer.start(PORT, latency);
+        try {
+            Dataset dataset = new Dataset(BenchServer.properties(PORT, "coalesce_requests: false\n"));
+            dataset.attach("abcd-1234");
+
+            List<Map> batch = new ArrayList<Map>(rows);
+            for ( int i = 0; i < rows; i++ ) {
+                Map<String, String> row = new HashMap<String, String>();
+                row.put("value", "row " + i);
+                batch.add(row);
+            }
+
+            for ( boolean virtual : new boolean[] { false, true } ) {
+                Workers.setVirtualThreads(virtual);
+                String mode = Workers.virtualThreads() ? "virtual threads" : "fixed pool";
+                // Warm up connections, JIT and the executor
+                dataset.addRows(batch.subList(0, Math.min(rows, 200)));
+                for ( int run = 1; run <= 3; run++ ) {
+                    long started = System.nanoTime();
+                    int added = dataset.addRows(batch);
+                    long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+                    System.out.println(mode + " run " + run + ": " + added + " rows in " +
+                            millis + "ms, " + (added * 1000L / millis) + " rows/s");
+                }
+            }
+        }
+        finally {
+            server.stop();
+            ConnectionPool.shutdown();
+        }
+    }
+}
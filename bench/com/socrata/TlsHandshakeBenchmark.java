@@ -0,0 +1,182 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.KeyStore;
+import java.util.PropertyResourceBundle;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Times TLS handshakes through the client's shared SSLContext, first with
+ * the session thrown away after every connection (a full handshake each
+ * time) and then with it kept in the session cache (resumed handshakes).
+ *
+ * Each connection sends a HEAD request and waits for the first byte of
+ * the response, so that a TLS 1.3 session ticket has arrived before the
+ * connection closes.
+ *
+ * Run it against a real server:
+ *
+ *   java -cp "build:lib/*" com.socrata.TlsHandshakeBenchmark host [port] [handshakes]
+ *
+ * or against a local server using a self-signed key store, which the
+ * client is told to trust:
+ *
+ *   keytool -genkeypair -keyalg EC -alias bench -dname CN=localhost \
+ *       -storepass benchpass -keystore bench.p12
+ *   java -cp "build:lib/*" com.socrata.TlsHandshakeBenchmark --keystore bench.p12 benchpass
+ *
+ * Build as for FanOutBenchmark.
+ */
+public class TlsHandshakeBenchmark {
+    private static final int PORT = 18903;
+
+    public static void main(String[] args) throws Exception {
+        String host;
+        int port, handshakes;
+        SSLServerSocket server = null;
+        if ( args.length > 2 && "--keystore".equals(args[0]) ) {
+            System.setProperty("javax.net.ssl.trustStore", args[1]);
+            System.setProperty("javax.net.ssl.trustStorePassword", args[2]);
+            server = serve(args[1], args[2].toCharArray());
+            host = "localhost";
+            port = PORT;
+            handshakes = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        }
+        else if ( args.length > 0 ) {
+            host = args[0];
+            port = args.length > 1 ? Integer.parseInt(args[1]) : 443;
+            handshakes = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        }
+        else {
+            System.err.println("usage: TlsHandshakeBenchmark host [port] [handshakes]");
+            System.err.println("       TlsHandshakeBenchmark --keystore file password [handshakes]");
+            return;
+        }
+
+        try {
+            SSLContext context = ConnectionPool.sslContext(new PropertyResourceBundle(
+                    new StringReader("")));
+            // Warm up the JIT and the crypto providers
+            handshakes(context, host, port, 20, false);
+            for ( int run = 1; run <= 3; run++ ) {
+                for ( boolean resume : new boolean[] { false, true } ) {
+                    long started = System.nanoTime();
+                    String protocol = handshakes(context, host, port, handshakes, resume);
+                    long micros = (System.nanoTime() - started) / 1000 / handshakes;
+                    System.out.println((resume ? "resumed" : "full") + " run " + run + ": " +
+                            protocol + ", " + micros + "us per handshake");
+                }
+            }
+        }
+        finally {
+            if ( server != null ) {
+                server.close();
+            }
+            ConnectionPool.shutdown();
+        }
+    }
+
+    /**
+     * Opens, handshakes and closes a number of connections
+     * @param resume false to invalidate each session so the next
+     *        connection cannot resume it
+     * @return the protocol of the last handshake
+     */
+    private static String handshakes(SSLContext context, String host, int port, int count,
+            boolean resume) throws IOException {
+        String protocol = null;
+        for ( int i = 0; i < count; i++ ) {
+            SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+            try {
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+                // TLS 1.3 sends the session ticket after the handshake, so
+                // wait for the first byte of a response to take it in
+                socket.getOutputStream().write(("HEAD / HTTP/1.1\r\nHost: " + host +
+                        "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                socket.getOutputStream().flush();
+                socket.getInputStream().read();
+                protocol = socket.getSession().getProtocol();
+                if ( !resume ) {
+                    socket.getSession().invalidate();
+                }
+            }
+            finally {
+                socket.close();
+            }
+        }
+        return protocol;
+    }
+
+    /**
+     * Starts a local server that completes a handshake on each connection
+     * and then closes it
+     */
+    private static SSLServerSocket serve(String keyStore, char[] password) throws Exception {
+        KeyStore keys = KeyStore.getInstance(KeyStore.getDefaultType());
+        FileInputStream in = new FileInputStream(keyStore);
+        try {
+            keys.load(in, password);
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keys, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(factory.getKeyManagers(), null, null);
+
+        final SSLServerSocket server = (SSLServerSocket)
+                context.getServerSocketFactory().createServerSocket(PORT);
+        Thread acceptor = Workers.daemonThreadFactory("bench-tls-server").newThread(new Runnable() {
+            public void run() {
+                while ( !server.isClosed() ) {
+                    try {
+                        SSLSocket socket = (SSLSocket) server.accept();
+                        try {
+                            socket.setTcpNoDelay(true);
+                            socket.startHandshake();
+                            socket.getOutputStream().write('.');
+                            socket.getOutputStream().flush();
+                            // Discard the request until the client closes
+                            while ( socket.getInputStream().read() != -1 ) {
+                                // Drain
+                            }
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException ex) {
+                        // Closed, or the client went away mid-handshake
+                    }
+                }
+            }
+        });
+        acceptor.start();
+        return server;
+    }
+}
@@ -0,0 +1,93 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Compares the Apache transport against JdkTransport: sequential
+ * metadata() calls for per-request latency, then Dataset.addRows() for
+ * throughput with many requests in flight. The local stand-in server only
+ * speaks HTTP/1.1, so this measures the clients' connection handling and
+ * overhead, not HTTP/2 multiplexing.
+ *
+ * Build and run from the repository root:
+ *
+ *   javac -d build -cp "lib/*" $(find src bench -name '*.java')
+ *   java -cp "build:lib/*" com.socrata.TransportBenchmark [requests] [latencyMillis]
+ */
+public class TransportBenchmark {
+    private static final int PORT = 18902;
+
+    @SuppressWarnings("rawtypes")
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+        BenchServer server = BenchServer.start(PORT, latency);
+        try {
+            Dataset dataset = new Dataset(BenchServer.properties(PORT, "coalesce_requests: false\n"));
+            dataset.attach("abcd-1234");
+
+            List<Map> batch = new ArrayList<Map>(requests);
+            for ( int i = 0; i < requests; i++ ) {
+                Map<String, String> row = new HashMap<String, String>();
+                row.put("value", "row " + i);
+                batch.add(row);
+            }
+
+            Transport[] transports = {
+                dataset.transport(),
+                new JdkTransport(0, SSLContext.getDefault())
+            };
+            for ( Transport transport : transports ) {
+                dataset.setTransport(transport);
+                String name = transport.getClass().getSimpleName();
+                // Warm up connections and JIT
+                for ( int i = 0; i < 50; i++ ) {
+                    dataset.metadata();
+                }
+                dataset.addRows(batch.subList(0, Math.min(requests, 200)));
+
+                for ( int run = 1; run <= 3; run++ ) {
+                    long started = System.nanoTime();
+                    for ( int i = 0; i < requests; i++ ) {
+                        dataset.metadata();
+                    }
+                    long micros = (System.nanoTime() - started) / 1000 / requests;
+                    System.out.println(name + " run " + run + ": sequential, " +
+                            micros + "us per request");
+
+                    started = System.nanoTime();
+                    int added = dataset.addRows(batch);
+                    long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+                    System.out.println(name + " run " + run + ": concurrent, " + added +
+                            " rows in " + millis + "ms, " + (added * 1000L / millis) + " rows/s");
+                }
+            }
+        }
+        finally {
+            server.stop();
+            ConnectionPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.IOException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The default transport, sending each request over a pooled HTTP/1.1
+ * connection of the shared Apache client.
+ */
+class ApacheTransport implements Transport {
+    private final DefaultHttpClient client;
+
+    ApacheTransport(DefaultHttpClient client) {
+        this.client = client;
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequestBase request, HttpContext context)
+            throws IOException {
+        return client.execute(target, request, context);
+    }
+
+    public int open(HttpHost target, int connections, int timeout) {
+        return ConnectionPool.open(client, target, connections, timeout);
+    }
+}
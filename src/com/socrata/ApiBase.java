@@ -18,7 +18,9 @@ limitations under the License.
 
  */
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
@@ -26,44 +28,91 @@ import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Base class under which all Socrata classes inherit.
  *
  * @author aiden.scandella@socrata.com
  */
-public abstract class ApiBase {
-    protected DefaultHttpClient httpClient;
+public abstract class ApiBase implements Closeable {
+    // The dataset a write touches: /views/<id>... or, for deletes, ?id=<id>
+    private static final Pattern WRITTEN_DATASET =
+            Pattern.compile("/views/([a-z0-9]{4}-[a-z0-9]{4})|[?&]id=([a-z0-9]{4}-[a-z0-9]{4})");
+
+    protected ClientConfig config;
+    protected Transport transport;
     protected HttpContext httpContext;
     protected HttpHost httpHost;
+    protected EndpointPool endpointPool;
     protected ResourceBundle properties;
     protected String              username, password, appToken;
+    protected boolean             gzipRequests;
+    protected int                 gzipRequestThreshold;
+    protected RateLimiter         rateLimiter;
+    protected Hedger              hedger;
+    protected ValidatorCache      validatorCache;
+    protected DiskCache           diskCache;
+    protected SessionCookies      sessionCookies;
+    protected RequestMetrics      metrics;
+    protected boolean             coalesceRequests = true;
+    protected Timeouts            timeouts = new Timeouts(Timeouts.DEFAULT_CONNECT_TIMEOUT,
+            Timeouts.DEFAULT_SOCKET_TIMEOUT, Timeouts.DEFAULT_REQUEST_TIMEOUT);
+    // Limits for particular operations, see setTimeouts(String, Timeouts)
+    private final ConcurrentMap<String, Timeouts> operationTimeouts =
+            new ConcurrentHashMap<String, Timeouts>();
+    protected RetryPolicy         retryPolicy = new RetryPolicy(RetryPolicy.DEFAULT_MAX_RETRIES,
+            RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY);
 
-    protected List<BatchRequest> batchQueue;
+    protected BatchQueue batchQueue;
+    private BatchSender batchSender;
+    private BatchLog batchLog;
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private final Queue<BatchRequest> deadLetters = new ConcurrentLinkedQueue<BatchRequest>();
 
     /**
      * Default class constructor.
      */
     public ApiBase() {
-        loadProperties();
-        finishConstruction();
+        this(ClientConfig.defaults());
     }
 
     /**
@@ -71,54 +120,298 @@ public abstract class ApiBase {
      * @param properties Specifies credentials and hostnames
      */
     public ApiBase(ResourceBundle properties) {
-        this.properties = properties;
-        this.httpClient = new DefaultHttpClient();
-        finishConstruction();
+        this(ClientConfig.fromProperties(properties));
+    }
+
+    /**
+     * Class constructor with user-specified username/password.
+     *
+     * @param username  the user account to connect with
+     * @param password  the password to connect with
+     * @return  a new Socrata API object with specified credentials
+     */
+    public ApiBase(String username, String password) {
+        this(ClientConfig.defaults().withCredentials(username, password));
     }
 
-    private void finishConstruction() {
+    /**
+     * Class constructor sharing an already-built configuration, the cheapest
+     * way to create many objects
+     * @param config credentials, hosts and settings
+     */
+    public ApiBase(ClientConfig config) {
+        this.config = config;
+        this.properties = config.properties();
+
         // Store these because we need them for some specialized calls
-        this.username = properties.getString("username");
-        this.password = properties.getString("password");
-        this.appToken = properties.getString("app_token");
+        this.username = config.username();
+        this.password = config.password();
+        this.appToken = config.appToken();
 
-        batchQueue = new ArrayList<BatchRequest>();
+        this.transport = config.transport();
+        this.gzipRequests = config.gzipRequests();
+        this.gzipRequestThreshold = config.gzipRequestThreshold();
+        this.retryPolicy = config.retryPolicy();
+        this.timeouts = config.timeouts();
+        this.operationTimeouts.putAll(config.operationTimeouts());
+
+        batchLog = config.batchLog();
+        batchQueue = new BatchQueue(config.batchFlushEntries(), config.batchFlushBytes(),
+                config.batchFlushInterval(), new Runnable() {
+            public void run() {
+                flushBatches(false);
+            }
+        }, batchLog);
+        batchSender = new BatchSender(this, config.batchChunkEntries(),
+                config.batchChunkBytes(), config.batchMaxInFlight(), config.batchOrdered(),
+                config.batchMaxAttempts());
+
+        endpointPool = config.endpointPool();
+        httpHost = endpointPool.primary();
 
         setupBasicAuthentication();
+        if ( config.sessionCookies() ) {
+            sessionCookies = new SessionCookies();
+        }
 
-        httpHost = new HttpHost(properties.getString("hostname"),
-                Integer.valueOf(properties.getString("hostport")));
+        rateLimiter = config.rateLimiter();
+        hedger = config.hedger();
+        validatorCache = config.validatorCache();
+        diskCache = config.diskCache();
+        coalesceRequests = config.coalesceRequests();
+        metrics = config.metrics();
+    }
 
-        httpContext = new BasicHttpContext();
+    /**
+     * Sends this object's requests through a different transport, e.g. one
+     * shared with other objects or one that records traffic
+     * @param transport the transport to use from now on
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
     }
 
     /**
-     * Class constructor with user-specified username/password.
-     *
-     * @param username  the user account to connect with
-     * @param password  the password to connect with
-     * @return  a new Socrata API object with specified credentials
+     * @return the transport this object's requests go through
      */
-    public ApiBase(String username, String password) {
-        loadProperties();
+    public Transport transport() {
+        return this.transport;
+    }
 
-        this.username = username;
-        this.password = password;
+    /**
+     * Changes the time limits applied to every subsequent call made by this
+     * object, overriding the defaults from the properties. Operations with
+     * limits of their own keep them.
+     * @param timeouts the new limits
+     */
+    public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+    }
 
-        setupBasicAuthentication();
+    /**
+     * @return the time limits applied to calls made by this object
+     */
+    public Timeouts timeouts() {
+        return this.timeouts;
+    }
+
+    /**
+     * Changes the time limits of one operation, such as Dataset's
+     * "metadata", "columns", "rows" or "upload", for subsequent calls made
+     * by this object, e.g. to give rows() a longer read timeout than
+     * metadata()
+     * @param operation the operation's name
+     * @param timeouts its limits, or null to use the object's general ones
+     */
+    public void setTimeouts(String operation, Timeouts timeouts) {
+        if ( timeouts == null ) {
+            operationTimeouts.remove(operation);
+        }
+        else {
+            operationTimeouts.put(operation, timeouts);
+        }
+    }
+
+    /**
+     * @param operation an operation's name, or null
+     * @return the time limits applied to that operation's calls
+     */
+    public Timeouts timeouts(String operation) {
+        Timeouts limits = operation == null ? null : operationTimeouts.get(operation);
+        return limits != null ? limits : this.timeouts;
+    }
+
+    /**
+     * Prepares this object for traffic using the warmup_connections setting
+     * @return how long warm-up took, in milliseconds
+     * @see #warmUp(int)
+     */
+    public long warmUp() {
+        return warmUp(config.warmupConnections());
+    }
+
+    /**
+     * Pays the one-off costs of the first request up front: resolves every
+     * endpoint, opens pooled connections to each, loads the JSON classes and,
+     * if credentials are set, authenticates preemptively. Failures are logged
+     * and otherwise ignored, since the real request will simply retry them.
+     * @param connections how many connections to open per endpoint
+     * @return how long warm-up took, in milliseconds
+     */
+    public long warmUp(int connections) {
+        long started = System.currentTimeMillis();
+
+        // The JVM caches successful lookups, so later connects skip DNS
+        for ( EndpointPool.Endpoint endpoint : endpointPool.endpoints() ) {
+            try {
+                InetAddress.getAllByName(endpoint.host().getHostName());
+            }
+            catch (UnknownHostException ex) {
+                log(Level.WARNING, "Could not resolve " + endpoint.host().getHostName(), ex);
+            }
+        }
+        long resolved = System.currentTimeMillis();
+
+        int opened = 0;
+        for ( EndpointPool.Endpoint endpoint : endpointPool.endpoints() ) {
+            opened += transport.open(endpoint.host(), connections, timeouts.connectTimeout());
+        }
+        long connected = System.currentTimeMillis();
+
+        new JsonPayload(new StringReader("{\"warm\":[1]}")).toJson();
+        long loaded = System.currentTimeMillis();
+
+        if ( username != null && username.length() > 0 ) {
+            // Also picks up the session cookie for the first real request
+            JsonPayload response = send(new HttpGet(httpBase() + "/users/current.json"), null);
+            if ( response == null || isErroneous(response) ) {
+                log(Level.WARNING, "Warm-up authentication as " + username + " failed");
+            }
+        }
+        long finished = System.currentTimeMillis();
+
+        log(Level.INFO, "Warm-up took " + (finished - started) + "ms: dns " +
+                (resolved - started) + "ms, " + opened + " connections " +
+                (connected - resolved) + "ms, classes " + (loaded - connected) +
+                "ms, auth " + (finished - loaded) + "ms");
+        return finished - started;
     }
 
     /**
      * Empty out the batchQueue, sending stored data back to Socrata servers
-     * @return success or failure
+     * @return success or failure; see sendBatch() for the details
      */
     public boolean sendBatchRequest() {
-        if ( batchQueue == null || batchQueue.size() == 0 ) {
-            log(Level.WARNING, "No batch requests in queue, ignoring call to sendBatchRequest" , null);
-            return false;
+        return sendBatch().isSuccess();
+    }
+
+    /**
+     * Empty out the batchQueue, sending stored data back to Socrata servers.
+     * Entries the server accepts are gone from the queue; rejected ones are
+     * requeued or dead-lettered, see drainDeadLetters().
+     * @return what happened to each entry
+     */
+    public BatchResult sendBatch() {
+        return flushBatches(true);
+    }
+
+    /**
+     * Removes and returns the batch requests given up on: those the server
+     * rejected outright, or kept rejecting for batch_max_attempts tries.
+     * With a batch log, dead letters stay in it until drained, so ones not
+     * yet drained when the process dies are queued and sent again on the
+     * next start; they also keep the log from being trimmed past them.
+     * @return the dead-lettered requests, oldest first
+     */
+    public List<BatchRequest> drainDeadLetters() {
+        List<BatchRequest> drained = new ArrayList<BatchRequest>();
+        BatchRequest request;
+        while ( (request = deadLetters.poll()) != null ) {
+            drained.add(request);
+        }
+        if ( batchLog != null && !drained.isEmpty() ) {
+            batchLog.acknowledge(drained, Collections.<BatchRequest>emptyList());
+        }
+        return drained;
+    }
+
+    /**
+     * @param result a flush's result with at least one dead letter
+     * @return the first failure that was given up on, not just requeued
+     */
+    private static BatchResult.Failure firstDeadLetter(BatchResult result) {
+        for ( BatchResult.Failure failure : result.getFailures() ) {
+            if ( failure.isDeadLettered() ) {
+                return failure;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Sends everything currently queued, in chunks (see BatchSender), after
+     * any requests the batch log recovered from an earlier process, and
+     * puts whatever could not be sent, or was rejected but may be tried
+     * again, back at the head of the queue.
+     * Flushes never overlap, so writes to a dataset reach the server in
+     * the order they were queued.
+     * @param explicit whether the caller asked for this flush, rather than
+     *        the queue's background trigger
+     * @return what happened to each entry
+     */
+    private BatchResult flushBatches(boolean explicit) {
+        // A lock rather than a monitor: the flush waits on the network, and a
+        // virtual thread blocked inside synchronized would pin its carrier
+        batchLock.lock();
+        try {
+            if ( batchLog != null ) {
+                // Whatever an earlier process queued but never got acknowledged
+                batchQueue.requeue(batchLog.takeRecovered());
+            }
+            List<BatchRequest> entries = batchQueue.drain();
+            if ( entries.isEmpty() ) {
+                if ( explicit ) {
+                    log(Level.WARNING, "No batch requests in queue, ignoring call to sendBatchRequest" , null);
+                }
+                return new BatchResult(0);
+            }
+
+            BatchResult result = batchSender.send(entries);
+            for ( BatchRequest entry : entries ) {
+                // Even a failed entry may have reached the server
+                if ( !"GET".equals(entry.data().get("requestType")) ) {
+                    evictCached(String.valueOf(entry.data().get("url")));
+                }
+            }
+            batchQueue.requeue(result.getRequeued());
+            List<BatchRequest> dead = result.getDeadLettered();
+            if ( batchLog != null ) {
+                // Dead letters stay logged until drainDeadLetters() hands them out
+                List<BatchRequest> kept = new ArrayList<BatchRequest>(result.getRequeued());
+                kept.addAll(dead);
+                batchLog.acknowledge(entries, kept);
+            }
+            if ( !dead.isEmpty() ) {
+                deadLetters.addAll(dead);
+                log(Level.WARNING, "Dead-lettered " + dead.size() + " batch requests, first: " +
+                        firstDeadLetter(result));
+            }
+            return result;
+        }
+        finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * Sends one chunk of batch requests as a single /batches post
+     * @param entries the requests to send
+     * @return the server's response, one result per entry, or null if the
+     *         post as a whole failed
+     */
+    JsonPayload postBatch(List<BatchRequest> entries) {
         Collection batches = new ArrayList<Map>();
-        for( BatchRequest b : batchQueue ) {
+        for( BatchRequest b : entries ) {
             batches.add(b.data());
         }
 
@@ -128,65 +421,602 @@ public abstract class ApiBase {
         }
         catch ( JSONException ex ) {
             log(Level.SEVERE, "Could not convert array of batch requests to JSON", ex);
-            return false;
+            return null;
         }
 
         HttpPost request = new HttpPost(httpBase() + "/batches");
         try {
             request.setEntity(new StringEntity(bodyObject.toString()));
-            log(Level.INFO, bodyObject.toString());
+            log(Level.FINE, bodyObject.toString());
         }
         catch ( UnsupportedEncodingException ex ) {
             log(Level.SEVERE, "Could not encode JSON data into HTTP entity", ex);
-            return false;
+            return null;
         }
 
         JsonPayload response = performRequest(request);
         if ( !isErroneous(response) ) {
-            log(Level.INFO, "Completed batch request, clearing out queue of " +
-                    batchQueue.size() + " entries.");
-            batchQueue.clear();
-            return true;
+            log(Level.FINE, "Completed batch request of " + entries.size() + " entries.");
+            return response;
         }
+        return null;
+    }
 
-        return false;
+    /**
+     * Stops background batch flushing and sends whatever is still queued.
+     * Entries that cannot be sent stay in the queue, and in the batch log
+     * if there is one, for the next process to pick up.
+     */
+    public void close() {
+        batchQueue.close();
+        while ( batchQueue.size() > 0 ) {
+            if ( !sendBatchRequest() ) {
+                log(Level.WARNING, "Closed with " + batchQueue.size() +
+                        " batch requests still unsent");
+                break;
+            }
+        }
+        if ( batchLog != null ) {
+            batchLog.sync();
+        }
     }
 
     /**
-     * Performs a generic request against Socrata API servers
+     * Performs a generic request against Socrata API servers, retrying
+     * transient failures according to the configured RetryPolicy. Concurrent
+     * identical GETs share a single request and its result.
      * @param request Apache HttpRequest object (e.g. HttpPost, HttpGet)
-     * @return JSON array representation of the response
+     * @return JSON array representation of the response, or null on failure
+     * @throws CircuitOpenException if circuit breaking is enabled and the
+     *         host's breaker is open
+     */
+    protected JsonPayload performRequest(final HttpRequestBase request) {
+        return performRequest(request, null);
+    }
+
+    /**
+     * Performs a request as performRequest(HttpRequestBase) does, under the
+     * time limits of the named operation
+     * @param request Apache HttpRequest object (e.g. HttpPost, HttpGet)
+     * @param operation the operation's name, see setTimeouts(String, Timeouts)
+     * @return JSON array representation of the response, or null on failure
+     * @throws CircuitOpenException if circuit breaking is enabled and the
+     *         host's breaker is open
+     */
+    protected JsonPayload performRequest(final HttpRequestBase request, final String operation) {
+        if ( !coalesces(request) ) {
+            return send(request, operation);
+        }
+        return SingleFlight.shared().execute(cacheKey(request), new Callable<JsonPayload>() {
+            public JsonPayload call() {
+                return send(request, operation);
+            }
+        });
+    }
+
+    /**
+     * Sends a request, without coalescing or hedging, and records it in
+     * the request metrics
+     * @param request the request to send
+     * @param operation whose time limits apply, or null for the general ones
+     * @return the parsed response, or null on failure
      */
-    protected JsonPayload performRequest(HttpRequestBase request) {
+    private JsonPayload send(HttpRequestBase request, String operation) {
+        Timeouts limits = timeouts(operation);
+        if ( metrics == null ) {
+            return send(request, limits, null);
+        }
+        RequestMetrics.Call call = metrics.begin(request.getURI().getPath());
+        try {
+            return send(request, limits, call);
+        }
+        finally {
+            call.end();
+        }
+    }
+
+    /**
+     * Sends a request, retrying as needed
+     * @param request the request to send
+     * @param limits the time limits in force for this call
+     * @param call where to record the call's progress, or null
+     * @return the parsed response, or null on failure
+     */
+    private JsonPayload send(HttpRequestBase request, Timeouts limits, RequestMetrics.Call call) {
         HttpResponse response;
-        HttpEntity entity;
+        long deadline = limits.requestTimeout() > 0 ?
+                System.currentTimeMillis() + limits.requestTimeout() : Long.MAX_VALUE;
 
         request.addHeader("X-App-Token", this.appToken);
-        try {
-            response = httpClient.execute(httpHost, request, httpContext);
+        long bodyLength = contentLength(request);
+        compressRequestBody(request);
+        if ( call != null ) {
+            call.requestBytes(bodyLength);
+        }
+
+        String cacheKey = null;
+        String url = request.getURI().toString();
+        ValidatorCache.Entry cached = null;
+        boolean onDisk = false;
+        if ( "GET".equals(request.getMethod()) ) {
+            cacheKey = cacheKey(request);
+            if ( validatorCache != null ) {
+                cached = validatorCache.get(cacheKey);
+            }
+            onDisk = diskCache != null && diskCache.accepts(url);
+            if ( onDisk ) {
+                DiskCache.Entry stored = diskCache.get(cacheKey);
+                if ( stored != null && stored.isFresh() ) {
+                    log(Level.FINE, "Using response for " + url + " from the disk cache");
+                    if ( call != null ) {
+                        call.skip();
+                    }
+                    return stored.payload;
+                }
+                if ( cached == null && stored != null ) {
+                    cached = stored.validators();
+                }
+            }
+            if ( cached != null ) {
+                cached.addConditions(request);
+            }
+        }
+
+        for ( int attempt = 0; ; attempt++ ) {
+            long delay;
+            long remaining = deadline - System.currentTimeMillis();
+            if ( remaining > 0 && rateLimiter != null && !rateLimiter.acquire(bodyLength, remaining) ) {
+                if ( Thread.currentThread().isInterrupted() ) {
+                    log(Level.WARNING, "Interrupted while waiting for rate limiter on " + request.getURI());
+                }
+                else {
+                    log(Level.SEVERE, "Rate limit would delay request on " + request.getURI() +
+                            " past its deadline of " + limits.requestTimeout() + "ms");
+                }
+                return null;
+            }
+            remaining = deadline - System.currentTimeMillis();
+            if ( remaining <= 0 ) {
+                log(Level.SEVERE, "Deadline of " + limits.requestTimeout() +
+                        "ms expired before performing request on " + request.getURI());
+                return null;
+            }
+            EndpointPool.Endpoint endpoint = endpointPool.select();
+            if ( endpoint.breaker() != null ) {
+                try {
+                    endpoint.breaker().acquire();
+                }
+                catch (CircuitOpenException ex) {
+                    endpointPool.cancel(endpoint);
+                    throw ex;
+                }
+            }
+            applyTimeouts(request, limits, remaining);
+            AtomicBoolean expired = new AtomicBoolean();
+            Future<?> abort = null;
+            long started = System.currentTimeMillis();
+            try {
+                abort = scheduleAbort(request, deadline, expired);
+                // The shared transport may be used by many threads at once, so each
+                // request gets its own context layered over this object's settings
+                HttpContext requestContext = new BasicHttpContext(httpContext);
+                if ( sessionCookies != null ) {
+                    sessionCookies.addTo(request);
+                }
+                response = transport.execute(endpoint.host(), request, requestContext);
+                if ( sessionCookies != null ) {
+                    sessionCookies.update(response);
+                }
 
-            if( response.getStatusLine().getStatusCode() != 200 ) {
-                log(java.util.logging.Level.SEVERE, "Got status " +
+                int status = response.getStatusLine().getStatusCode();
+                if ( call != null ) {
+                    call.response(response);
+                }
+                if( status == 200 ) {
+                    JsonPayload payload = new JsonPayload(response);
+                    if ( payload.readError() != null ) {
+                        // Cut short, e.g. aborted mid-body: a failure, not an empty 200
+                        throw payload.readError();
+                    }
+                    recordOutcome(endpoint, true, started);
+                    if ( cacheKey == null ) {
+                        evictCached(url);
+                    }
+                    // A body that failed to parse must not be revalidated later
+                    if ( cacheKey != null && validatorCache != null &&
+                            (payload.getObject() != null || payload.getArray() != null) ) {
+                        validatorCache.put(cacheKey, response, payload);
+                    }
+                    if ( onDisk ) {
+                        diskCache.put(cacheKey, url, headerValue(response, "ETag"),
+                                headerValue(response, "Last-Modified"), payload);
+                    }
+                    return payload;
+                }
+                recordOutcome(endpoint, status < 500, started);
+                if ( status == 304 && cached != null ) {
+                    release(response);
+                    log(Level.FINE, "Not modified, using cached response for " + url);
+                    if ( onDisk ) {
+                        // Still valid, so start its time-to-live over
+                        diskCache.put(cacheKey, url, cached.etag, cached.lastModified, cached.payload);
+                    }
+                    return cached.payload;
+                }
+
+                delay = retryPolicy.delayAfter(attempt, request, response);
+                release(response);
+                log(delay == RetryPolicy.NO_RETRY ? Level.SEVERE : Level.WARNING, "Got status " +
                         response.getStatusLine().getStatusCode() + ": " +
                         response.getStatusLine().toString() +
                         " while performing request on " + request.getURI(), null);
+            }
+            catch (IOException ex) {
+                if ( request.isAborted() ) {
+                    if ( expired.get() ) {
+                        // Too slow to answer within the deadline counts against the endpoint
+                        recordOutcome(endpoint, false, started);
+                    }
+                    else {
+                        // Cancelled on purpose, e.g. a hedge that lost the race
+                        log(Level.FINE, "Request on " + request.getURI() + " was aborted", ex);
+                        endpointPool.cancel(endpoint);
+                        if ( endpoint.breaker() != null ) {
+                            endpoint.breaker().release();
+                        }
+                    }
+                    if ( call != null ) {
+                        call.aborted();
+                    }
+                    return null;
+                }
+                recordOutcome(endpoint, false, started);
+                if ( call != null ) {
+                    call.failed();
+                }
+                delay = retryPolicy.delayAfter(attempt, request, ex);
+                log(delay == RetryPolicy.NO_RETRY ? Level.SEVERE : Level.WARNING,
+                        "Error caught trying to perform HTTP request on " + request.getURI(), ex);
+            }
+            catch (Exception ex) {
+                recordOutcome(endpoint, false, started);
+                if ( call != null ) {
+                    call.failed();
+                }
+                log(Level.SEVERE, "Error caught trying to perform HTTP request", ex);
                 return null;
             }
+            finally {
+                if ( abort != null ) {
+                    abort.cancel(false);
+                }
+            }
+
+            if ( delay == RetryPolicy.NO_RETRY ) {
+                return null;
+            }
+            if ( System.currentTimeMillis() + delay >= deadline ) {
+                log(Level.SEVERE, "Not retrying " + request.getURI() +
+                        ", the back off would outlast its deadline");
+                return null;
+            }
+            if ( call != null ) {
+                call.retry();
+            }
+            log(Level.INFO, "Retrying " + request.getMethod() + " " + request.getURI() +
+                    " in " + delay + "ms (retry " + (attempt + 1) + " of " +
+                    retryPolicy.maxRetries() + ")");
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Performs an idempotent GET, sending a second copy if the first has not
+     * answered within the endpoint's usual latency. Whichever copy answers
+     * first wins and the other is aborted. Without hedging enabled this is
+     * the same as performRequest.
+     * @param request the GET to send
+     * @param endpoint logical name used to group latencies, e.g. "columns",
+     *        and the operation whose time limits apply
+     * @return the winning response, or null if both copies failed
+     */
+    protected JsonPayload performHedgedRequest(final HttpGet request, final String endpoint) {
+        if ( hedger == null ) {
+            return performRequest(request, endpoint);
+        }
+        if ( !coalesces(request) ) {
+            return hedge(request, endpoint);
+        }
+        // Coalesce around the race, so the copies do not join each other
+        return SingleFlight.shared().execute(cacheKey(request), new Callable<JsonPayload>() {
+            public JsonPayload call() {
+                return hedge(request, endpoint);
+            }
+        });
+    }
+
+    private JsonPayload hedge(final HttpGet request, final String endpoint) {
+        long started = System.currentTimeMillis();
+        long delay = hedger.delay(endpoint);
+        if ( delay < 0 ) {
+            // Not enough history yet to know what "slow" means
+            JsonPayload response = send(request, endpoint);
+            if ( response != null ) {
+                hedger.record(endpoint, System.currentTimeMillis() - started);
+            }
+            return response;
+        }
+
+        final HttpGet hedge = new HttpGet(request.getURI());
+        hedge.setHeaders(request.getAllHeaders());
+
+        // The first copy runs on this thread and only the hedge is handed
+        // off, so a caller already on a worker pool never waits on a task
+        // queued behind it. The flags are guarded by the reference: a copy
+        // is only aborted while it is still running, because aborting one
+        // that has finished can close a connection already back in the pool.
+        final AtomicBoolean firstDone = new AtomicBoolean();
+        final AtomicBoolean hedgeDone = new AtomicBoolean();
+        final AtomicReference<Future<JsonPayload>> hedged = new AtomicReference<Future<JsonPayload>>();
+        final long hedgeDelay = delay;
+        Future<?> timer = Workers.scheduler().schedule(new Runnable() {
+            public void run() {
+                synchronized ( hedged ) {
+                    if ( firstDone.get() || !hedger.tryHedge() ) {
+                        return;
+                    }
+                    try {
+                        hedged.set(Workers.hedgeExecutor().submit(new Callable<JsonPayload>() {
+                            public JsonPayload call() {
+                                JsonPayload response = send(hedge, endpoint);
+                                synchronized ( hedged ) {
+                                    hedgeDone.set(true);
+                                    if ( response != null && !firstDone.get() ) {
+                                        // Won the race, stop the first copy
+                                        request.abort();
+                                    }
+                                }
+                                return response;
+                            }
+                        }));
+                        log(Level.FINE, "Hedging request on " + request.getURI() +
+                                " after " + hedgeDelay + "ms");
+                    }
+                    catch (RejectedExecutionException ex) {
+                        // Every hedge thread is busy, let the first copy run alone
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        JsonPayload response;
+        try {
+            response = send(request, endpoint);
+        }
+        finally {
+            synchronized ( hedged ) {
+                firstDone.set(true);
+            }
+            timer.cancel(false);
+        }
+
+        Future<JsonPayload> other = hedged.get();
+        if ( response == null && other != null ) {
+            // The first copy failed, or was stopped because the hedge answered
+            try {
+                long timeout = timeouts(endpoint).requestTimeout();
+                response = timeout > 0 ? other.get(timeout, TimeUnit.MILLISECONDS) : other.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException ex) {
+                log(Level.SEVERE, "Hedged request on " + request.getURI() + " failed", ex);
+            }
+            catch (TimeoutException ex) {
+                log(Level.SEVERE, "Hedged request on " + request.getURI() + " timed out");
+            }
+        }
+        synchronized ( hedged ) {
+            if ( other != null && !hedgeDone.get() ) {
+                hedge.abort();
+                other.cancel(true);
+            }
+        }
+        if ( response != null ) {
+            hedger.record(endpoint, System.currentTimeMillis() - started);
+        }
+        return response;
+    }
+
+    /**
+     * @param request a request about to be performed
+     * @return whether identical concurrent copies of it may share one response
+     */
+    private boolean coalesces(HttpRequestBase request) {
+        return coalesceRequests && "GET".equals(request.getMethod());
+    }
 
-            return new JsonPayload(response);
+    /**
+     * Sets this attempt's connect, pool-wait and read timeouts, never
+     * allowing any of them to outlast the call's deadline
+     * @param request the request about to be sent
+     * @param limits the timeouts in force for this call
+     * @param remaining milliseconds left before the deadline
+     */
+    private static void applyTimeouts(HttpRequestBase request, Timeouts limits, long remaining) {
+        int connect = cap(limits.connectTimeout(), remaining);
+        int socket = cap(limits.socketTimeout(), remaining);
+
+        HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connect);
+        HttpConnectionParams.setSoTimeout(params, socket);
+        ConnManagerParams.setTimeout(params, connect);
+    }
+
+    /**
+     * @param timeout a timeout, where 0 means none
+     * @param remaining milliseconds left before the deadline, or a huge
+     *        number if there is none
+     * @return the smaller of the two, as a timeout
+     */
+    private static int cap(int timeout, long remaining) {
+        if ( remaining >= Integer.MAX_VALUE ) {
+            return timeout;
+        }
+        if ( timeout <= 0 || timeout > remaining ) {
+            return (int) remaining;
         }
-        catch (Exception ex) {
-            log(Level.SEVERE, "Error caught trying to perform HTTP request", ex);
+        return timeout;
+    }
+
+    /**
+     * Arranges for the request to be aborted, closing its connection, if
+     * it is still running when the deadline passes
+     * @param request the request about to be sent
+     * @param deadline the wall-clock deadline, or Long.MAX_VALUE for none
+     * @param expired set before the abort, so it can be told apart from a
+     *        cancellation
+     * @return a handle to cancel the abort, or null if there is no deadline
+     */
+    private Future<?> scheduleAbort(final HttpRequestBase request, long deadline,
+            final AtomicBoolean expired) {
+        if ( deadline == Long.MAX_VALUE ) {
             return null;
         }
+        return Workers.scheduler().schedule(new Runnable() {
+            public void run() {
+                log(Level.WARNING, "Deadline expired, aborting request on " + request.getURI());
+                expired.set(true);
+                request.abort();
+            }
+        }, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Loads necessary connection details from disk.
+     * Tells the endpoint pool and the circuit breaker, if any, how a request went
+     * @param endpoint where the request was sent
+     * @param success whether the host answered without a server error
+     * @param started when the request was sent, in milliseconds
      */
-    private void loadProperties() {
-        this.properties = ResourceBundle.getBundle("com.socrata.resources");
-        this.httpClient = new DefaultHttpClient();
+    private void recordOutcome(EndpointPool.Endpoint endpoint, boolean success, long started) {
+        long elapsed = System.currentTimeMillis() - started;
+        endpointPool.done(endpoint, success, TimeUnit.MILLISECONDS.toNanos(elapsed));
+        if ( endpoint.breaker() != null ) {
+            endpoint.breaker().record(success, elapsed);
+        }
+    }
+
+    /**
+     * Drops cached copies of what a write may have changed: the metadata
+     * and columns of the dataset it touched, and the user's dataset list.
+     * Only this object's credentials are covered, since cache keys include
+     * them and the disk cache stores keys hashed.
+     * @param url the url or path that was written to
+     */
+    private void evictCached(String url) {
+        if ( validatorCache == null && diskCache == null ) {
+            return;
+        }
+        List<String> stale = new ArrayList<String>(3);
+        Matcher dataset = WRITTEN_DATASET.matcher(url);
+        if ( dataset.find() ) {
+            String id = dataset.group(1) != null ? dataset.group(1) : dataset.group(2);
+            stale.add(httpBase() + "/views/" + id + ".json");
+            stale.add(httpBase() + "/views/" + id + "/columns.json");
+        }
+        if ( url.contains("/views") ) {
+            stale.add(httpBase() + "/users/" + username + "/views.json");
+        }
+        for ( String staleUrl : stale ) {
+            String key = cacheKey("GET", staleUrl);
+            if ( validatorCache != null ) {
+                validatorCache.remove(key);
+            }
+            if ( diskCache != null ) {
+                diskCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Identifies a GET in the shared caches. Credentials are part of the key
+     * since different users may be shown different data.
+     * @param request the request
+     * @return a key unique to the method, URL and credentials
+     */
+    private String cacheKey(HttpRequestBase request) {
+        return cacheKey(request.getMethod(), request.getURI().toString());
+    }
+
+    private String cacheKey(String method, String url) {
+        return method + " " + url + " " + username + " " + appToken;
+    }
+
+    /**
+     * @param response a server response
+     * @param name a header name
+     * @return the value of the first such header, or null
+     */
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Discards an unwanted response body so its connection goes back to the pool
+     * @param response the response to throw away
+     */
+    private void release(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if ( entity == null ) {
+            return;
+        }
+        try {
+            entity.consumeContent();
+        }
+        catch (IOException ex) {
+            log(Level.FINE, "Could not consume response body", ex);
+        }
+    }
+
+    /**
+     * @param request an outgoing request
+     * @return the length of its body, or 0 if it has none or it is unknown
+     */
+    private static long contentLength(HttpRequestBase request) {
+        if ( !(request instanceof HttpEntityEnclosingRequest) ) {
+            return 0;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null ? 0 : Math.max(0, entity.getContentLength());
+    }
+
+    /**
+     * If enabled, replaces a request body at or above the size threshold
+     * with one that is gzipped while it streams out. Bodies of unknown
+     * length, such as multipart uploads, are always compressed.
+     * @param request the request about to be sent
+     */
+    private void compressRequestBody(HttpRequestBase request) {
+        if ( !gzipRequests || !(request instanceof HttpEntityEnclosingRequest) ) {
+            return;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if ( entity == null || entity.getContentEncoding() != null ) {
+            return;
+        }
+        long length = entity.getContentLength();
+        if ( length >= 0 && length < gzipRequestThreshold ) {
+            return;
+        }
+        ((HttpEntityEnclosingRequest) request).setEntity(new GzipCompressingEntity(entity));
     }
 
     /**
@@ -198,14 +1028,55 @@ public abstract class ApiBase {
 
         credProvider.setCredentials(AuthScope.ANY, defaultcreds);
 
+        // Caching a scheme for every endpoint makes the client send the
+        // credentials up front instead of waiting for a 401 challenge
         AuthCache authCache = new BasicAuthCache();
-        BasicScheme basicAuth = new BasicScheme();
+        for ( EndpointPool.Endpoint endpoint : endpointPool.endpoints() ) {
+            authCache.put(endpoint.host(), new BasicScheme());
+        }
 
+        // Credentials live in the context rather than on the client, since
+        // the client is shared by every Socrata object
         httpContext = new BasicHttpContext();
-        httpContext.setAttribute(ClientContext.AUTH_CACHE, basicAuth);
+        httpContext.setAttribute(ClientContext.AUTH_CACHE, authCache);
+        httpContext.setAttribute(ClientContext.CREDS_PROVIDER, credProvider);
+    }
 
+    /**
+     * Reads an optional integer setting
+     * @param properties the bundle to read from
+     * @param key the name of the setting
+     * @param defaultValue the value to use when the setting is missing or blank
+     * @return the configured value, or the default
+     */
+    static int intSetting(ResourceBundle properties, String key, int defaultValue) {
+        String value = setting(properties, key, null);
+        if ( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException ex) {
+            Logger.getLogger(ApiBase.class.getName()).log(Level.WARNING,
+                    "Ignoring non-numeric value '" + value + "' for setting " + key);
+            return defaultValue;
+        }
+    }
 
-        httpClient.setCredentialsProvider(credProvider);
+    /**
+     * Reads an optional setting
+     * @param properties the bundle to read from
+     * @param key the name of the setting
+     * @param defaultValue the value to use when the setting is missing or blank
+     * @return the configured value, or the default
+     */
+    static String setting(ResourceBundle properties, String key, String defaultValue) {
+        if ( properties == null || !properties.containsKey(key) ) {
+            return defaultValue;
+        }
+        String value = properties.getString(key).trim();
+        return value.isEmpty() ? defaultValue : value;
     }
 
 
@@ -214,8 +1085,7 @@ public abstract class ApiBase {
      * @return the base URL for http requests
      */
     public String httpBase() {
-        return "http://" + properties.getString("hostname") +
-                ":" + properties.getString("hostport");
+        return config.httpBase();
     }
 
     /**
@@ -0,0 +1,151 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Asynchronous view of a Dataset. Every call returns immediately with a
+ * future that completes with the same value the blocking Dataset method
+ * would have returned.
+ *
+ * The I/O underneath is still blocking: each call holds a thread of the
+ * executor until its request completes, so the executor's size limits
+ * how many calls are in flight. See Workers.asyncExecutor() for the
+ * default, and Workers.setVirtualThreads() to lift that limit on runtimes
+ * with virtual threads.
+ */
+public class AsyncDataset {
+    private final Dataset  dataset;
+    private final Executor executor;
+
+    /**
+     * Wraps a dataset, running calls on Workers.asyncExecutor() as it is
+     * when each call is made
+     * @param dataset the dataset to operate on
+     */
+    public AsyncDataset(Dataset dataset) {
+        this(dataset, null);
+    }
+
+    /**
+     * Wraps a dataset, running calls on the given executor
+     * @param dataset the dataset to operate on
+     * @param executor where the underlying requests are performed, or null
+     *        for Workers.asyncExecutor(); not the fan-out pool
+     *        (Workers.defaultExecutor()), which calls such as User.metadata()
+     *        wait on
+     */
+    public AsyncDataset(Dataset dataset, Executor executor) {
+        this.dataset = dataset;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the wrapped dataset
+     */
+    public Dataset dataset() {
+        return this.dataset;
+    }
+
+    /**
+     * @see Dataset#create(String, String, String[])
+     */
+    public CompletableFuture<Boolean> create(final String title,
+            final String description, final String[] tags) {
+        return submit(new Supplier<Boolean>() {
+            public Boolean get() {
+                return dataset.create(title, description, tags);
+            }
+        });
+    }
+
+    /**
+     * @see Dataset#create(String, String)
+     */
+    public CompletableFuture<Boolean> create(String title, String description) {
+        return create(title, description, null);
+    }
+
+    /**
+     * @see Dataset#importFile(File)
+     */
+    public CompletableFuture<Boolean> importFile(final File file) {
+        return submit(new Supplier<Boolean>() {
+            public Boolean get() {
+                return dataset.importFile(file);
+            }
+        });
+    }
+
+    /**
+     * @see Dataset#addRow(Map)
+     */
+    public CompletableFuture<Boolean> addRow(final Map<?, ?> row) {
+        return submit(new Supplier<Boolean>() {
+            public Boolean get() {
+                return dataset.addRow(row);
+            }
+        });
+    }
+
+    /**
+     * @see Dataset#metadata()
+     */
+    public CompletableFuture<JSONObject> metadata() {
+        return submit(new Supplier<JSONObject>() {
+            public JSONObject get() {
+                return dataset.metadata();
+            }
+        });
+    }
+
+    /**
+     * @see Dataset#columns()
+     */
+    public CompletableFuture<JSONArray> columns() {
+        return submit(new Supplier<JSONArray>() {
+            public JSONArray get() {
+                return dataset.columns();
+            }
+        });
+    }
+
+    /**
+     * @see Dataset#rows()
+     */
+    public CompletableFuture<JSONArray> rows() {
+        return submit(new Supplier<JSONArray>() {
+            public JSONArray get() {
+                return dataset.rows();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call,
+                executor != null ? executor : Workers.asyncExecutor());
+    }
+}
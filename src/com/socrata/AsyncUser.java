@@ -0,0 +1,73 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous view of a User. As with AsyncDataset, each call holds a
+ * thread of its executor until its requests complete.
+ */
+public class AsyncUser {
+    private final User     user;
+    private final Executor executor;
+
+    /**
+     * Wraps a user, running calls on Workers.asyncExecutor() as it is
+     * when each call is made
+     * @param user the user to operate on
+     */
+    public AsyncUser(User user) {
+        this(user, null);
+    }
+
+    /**
+     * Wraps a user, running calls on the given executor
+     * @param user the user to operate on
+     * @param executor where the underlying requests are performed, or null
+     *        for Workers.asyncExecutor(); not the fan-out pool
+     *        (Workers.defaultExecutor()), which calls such as User.metadata()
+     *        wait on
+     */
+    public AsyncUser(User user, Executor executor) {
+        this.user = user;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the wrapped user
+     */
+    public User user() {
+        return this.user;
+    }
+
+    /**
+     * @see User#datasets()
+     */
+    public CompletableFuture<List<Dataset>> datasets() {
+        return CompletableFuture.supplyAsync(new Supplier<List<Dataset>>() {
+            public List<Dataset> get() {
+                return user.datasets();
+            }
+        }, executor != null ? executor : Workers.asyncExecutor());
+    }
+}
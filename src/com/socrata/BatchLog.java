@@ -0,0 +1,539 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Optional write-ahead log of queued batch requests, so entries that were
+ * queued but not yet acknowledged by the server survive a crash.
+ *
+ * Every request is appended to the current segment file before it enters
+ * the queue, as one record:
+ *
+ *   int    length of the JSON payload
+ *   long   sequence number
+ *   int    CRC32 of the sequence number and payload
+ *   ...    UTF-8 JSON of the request's url, requestType and body
+ *
+ * Segments are named after the first sequence number they hold and a new
+ * one is started once the current one passes batch_log_segment_bytes.
+ * batch_log_fsync decides when appends reach the disk:
+ *
+ *   per_entry  each append is synced before it returns
+ *   group      each append waits for a sync, but one sync covers every
+ *              append that arrived while the previous one ran
+ *   periodic   appends return at once and the log is synced every
+ *              batch_log_fsync_interval milliseconds
+ *
+ * When a flush finishes, the lowest sequence number still waiting for the
+ * server is written to the checkpoint file, and segments wholly below it
+ * are deleted. On start the log replays the records from the checkpoint
+ * on; a record cut short or failing its CRC marks the end of the log.
+ * Entries acknowledged out of order above the checkpoint are replayed
+ * too, so after a crash a request may be sent twice, never lost.
+ *
+ * Each host and user gets its own subdirectory of batch_log_dir, so
+ * recovered requests are only replayed with the credentials that queued
+ * them. A lock file keeps a second process from using the same log.
+ */
+class BatchLog {
+    enum Fsync { PER_ENTRY, GROUP, PERIODIC }
+
+    private static final String SUFFIX      = ".log";
+    private static final String CHECKPOINT  = "checkpoint";
+    private static final String LOCK        = "lock";
+    private static final int    HEADER      = 4 + 8 + 4;
+    private static final int    MAX_PAYLOAD = 64 * 1024 * 1024;
+
+    private static final Map<String, BatchLog> LOGS = new LinkedHashMap<String, BatchLog>();
+
+    private final File        directory;
+    private final long        segmentBytes;
+    private final Fsync       fsync;
+    private final FileChannel lockChannel;
+
+    // Guards segment, segmentSize and nextSequence
+    private final Object      writeLock = new Object();
+    private FileChannel       segment;
+    private long              segmentSize;
+    private long              nextSequence;
+
+    // Highest sequence number known to be on disk
+    private final Object     syncLock = new Object();
+    private final AtomicLong synced   = new AtomicLong();
+
+    // Sequence numbers appended but not yet acknowledged
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+    private long                              checkpointed;
+    private List<BatchRequest>                recovered;
+
+    private BatchLog(File directory, Fsync fsync, ResourceBundle properties) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = ApiBase.intSetting(properties, "batch_log_segment_bytes",
+                16 * 1024 * 1024);
+        this.fsync = fsync;
+        this.lockChannel = lock(directory);
+        try {
+            recover();
+            openSegment();
+        }
+        catch (IOException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+
+        if ( fsync == Fsync.PERIODIC ) {
+            long interval = ApiBase.intSetting(properties, "batch_log_fsync_interval", 1000);
+            Workers.scheduler().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the log for the configured directory, host and user, opening
+     * and recovering it on first use
+     * @param properties where to find batch_log_dir and the policies
+     * @param host the API host the requests are sent to
+     * @param username the user the requests are sent as
+     * @return the shared log, or null if batch_log_dir is not set or the
+     *         log cannot be opened
+     * @throws IllegalArgumentException if batch_log_fsync is not a known policy
+     */
+    static BatchLog forProperties(ResourceBundle properties, String host, String username) {
+        String base = ApiBase.setting(properties, "batch_log_dir", null);
+        if ( base == null ) {
+            return null;
+        }
+        String policy = ApiBase.setting(properties, "batch_log_fsync", "group");
+        Fsync fsync;
+        try {
+            fsync = Fsync.valueOf(policy.toUpperCase());
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid batch_log_fsync '" + policy +
+                    "', expected per_entry, group or periodic");
+        }
+
+        String dir = new File(base, DigestUtils.shaHex(host + " " + username)).getPath();
+        synchronized ( LOGS ) {
+            BatchLog log = LOGS.get(dir);
+            if ( log == null ) {
+                File directory = new File(dir);
+                if ( !directory.isDirectory() && !directory.mkdirs() ) {
+                    Logger.getLogger(BatchLog.class.getName()).log(Level.WARNING,
+                            "Could not create batch log directory " + dir + ", batch log disabled");
+                    return null;
+                }
+                try {
+                    log = new BatchLog(directory, fsync, properties);
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(BatchLog.class.getName()).log(Level.WARNING,
+                            "Could not open batch log in " + dir + ", batch log disabled", ex);
+                    return null;
+                }
+                LOGS.put(dir, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Hands out the requests recovered at startup, once; later callers get
+     * an empty list. Only a flush should take them, so that they are
+     * sent rather than left in a queue nobody sends.
+     * @return the unacknowledged requests, in sequence order
+     */
+    synchronized List<BatchRequest> takeRecovered() {
+        List<BatchRequest> taken = recovered;
+        recovered = Collections.emptyList();
+        return taken;
+    }
+
+    /**
+     * Writes a request to the log and gives it its sequence number. With
+     * the per_entry and group policies the record is on disk on return.
+     * A request that cannot be written is still queued, just not durably.
+     * @param request the request about to be queued
+     */
+    void append(BatchRequest request) {
+        byte[] payload;
+        try {
+            payload = new JSONObject(request.data()).toString().getBytes("UTF-8");
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        long sequence;
+        synchronized ( writeLock ) {
+            sequence = nextSequence++;
+            ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+            record.putInt(payload.length).putLong(sequence).putInt(crc(sequence, payload))
+                    .put(payload).flip();
+            // Pending before written, so the checkpoint never passes it
+            pending.add(sequence);
+            try {
+                while ( record.hasRemaining() ) {
+                    segment.write(record);
+                }
+                segmentSize += HEADER + payload.length;
+                if ( fsync == Fsync.PER_ENTRY ) {
+                    segment.force(false);
+                    advanceSynced(sequence);
+                }
+                if ( segmentSize >= segmentBytes ) {
+                    openSegment();
+                }
+            }
+            catch (IOException ex) {
+                pending.remove(sequence);
+                Logger.getLogger(BatchLog.class.getName()).log(Level.SEVERE,
+                        "Could not write batch log record " + sequence, ex);
+                return;
+            }
+        }
+        request.sequence = sequence;
+
+        if ( fsync == Fsync.GROUP ) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * Makes sure everything appended so far is on disk
+     */
+    void sync() {
+        long last;
+        synchronized ( writeLock ) {
+            last = nextSequence - 1;
+        }
+        sync(last);
+    }
+
+    /**
+     * Waits until the given record is on disk. Threads that arrive while a
+     * sync is running wait for it and then find their record already
+     * covered, so many appends share one sync.
+     */
+    private void sync(long sequence) {
+        while ( synced.get() < sequence ) {
+            synchronized ( syncLock ) {
+                if ( synced.get() >= sequence ) {
+                    return;
+                }
+                FileChannel channel;
+                long last;
+                synchronized ( writeLock ) {
+                    channel = segment;
+                    last = nextSequence - 1;
+                }
+                try {
+                    channel.force(false);
+                    advanceSynced(last);
+                }
+                catch (ClosedChannelException ex) {
+                    // Rotated meanwhile; the old segment was synced on the way out
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(BatchLog.class.getName()).log(Level.SEVERE,
+                            "Could not sync batch log", ex);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks requests as done with, because the server accepted them or
+     * they were given up on and handed to the caller, and moves the
+     * checkpoint forward as far as the oldest request still waiting
+     * @param sent the requests a flush took from the queue, or drained dead letters
+     * @param kept those of them still waiting: requeued or not yet drained
+     */
+    void acknowledge(List<BatchRequest> sent, Collection<BatchRequest> kept) {
+        Set<BatchRequest> requeued = Collections.newSetFromMap(
+                new IdentityHashMap<BatchRequest, Boolean>());
+        requeued.addAll(kept);
+        for ( BatchRequest request : sent ) {
+            if ( request.sequence > 0 && !requeued.contains(request) ) {
+                pending.remove(request.sequence);
+            }
+        }
+        checkpoint();
+    }
+
+    private synchronized void checkpoint() {
+        long watermark;
+        synchronized ( writeLock ) {
+            Iterator<Long> oldest = pending.iterator();
+            watermark = oldest.hasNext() ? oldest.next() : nextSequence;
+        }
+        if ( watermark <= checkpointed ) {
+            return;
+        }
+
+        File target = new File(directory, CHECKPOINT);
+        File temp = new File(directory, CHECKPOINT + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(ByteBuffer.allocate(8).putLong(watermark).array());
+                out.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(BatchLog.class.getName()).log(Level.WARNING,
+                    "Could not write batch log checkpoint", ex);
+            return;
+        }
+        checkpointed = watermark;
+
+        // A segment is finished with once the next one starts at or below the checkpoint
+        File[] segments = segments();
+        for ( int i = 0; i + 1 < segments.length; i++ ) {
+            if ( firstSequence(segments[i + 1]) <= watermark ) {
+                segments[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Locks the directory for the life of the process. The lock is never
+     * released; the operating system drops it when the process exits.
+     * @return the open lock file
+     * @throws IOException if another process holds the lock
+     */
+    private static FileChannel lock(File directory) throws IOException {
+        FileChannel channel = FileChannel.open(new File(directory, LOCK).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        if ( lock == null ) {
+            channel.close();
+            throw new IOException("Batch log " + directory + " is in use by another process");
+        }
+        return channel;
+    }
+
+    /**
+     * Syncs and closes the current segment, if any, and starts a new one
+     * at the next sequence number. Called with writeLock held.
+     */
+    private void openSegment() throws IOException {
+        if ( segment != null ) {
+            segment.force(false);
+            advanceSynced(nextSequence - 1);
+            segment.close();
+        }
+        File file = new File(directory, String.format("%020d", nextSequence) + SUFFIX);
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+    }
+
+    /**
+     * Reads the checkpoint and every segment, keeping the records at or
+     * above the checkpoint and truncating a torn record at the end
+     */
+    private void recover() throws IOException {
+        long watermark = readCheckpoint();
+        long last = watermark - 1;
+        List<BatchRequest> found = new ArrayList<BatchRequest>();
+
+        for ( File file : segments() ) {
+            long good = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                while ( true ) {
+                    int length = in.readInt();
+                    long sequence = in.readLong();
+                    int crc = in.readInt();
+                    if ( length < 0 || length > MAX_PAYLOAD ) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if ( crc != crc(sequence, payload) ) {
+                        break;
+                    }
+                    good += HEADER + length;
+                    last = Math.max(last, sequence);
+                    if ( sequence >= watermark ) {
+                        BatchRequest request = decode(payload);
+                        request.sequence = sequence;
+                        found.add(request);
+                        pending.add(sequence);
+                    }
+                }
+            }
+            catch (EOFException ex) {
+                // End of segment, possibly mid-record
+            }
+            catch (JSONException ex) {
+                // Fall through to truncation
+            }
+            finally {
+                in.close();
+            }
+
+            if ( good < file.length() ) {
+                Logger.getLogger(BatchLog.class.getName()).log(Level.WARNING,
+                        "Truncating batch log " + file + " from " + file.length() +
+                        " to " + good + " bytes at an incomplete or corrupt record");
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(good);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+        }
+
+        nextSequence = Math.max(last + 1, 1);
+        synced.set(nextSequence - 1);
+        checkpointed = watermark;
+        recovered = found;
+        if ( !found.isEmpty() ) {
+            Logger.getLogger(BatchLog.class.getName()).log(Level.INFO, "Recovered " +
+                    found.size() + " unacknowledged batch requests from " + directory);
+        }
+    }
+
+    private long readCheckpoint() {
+        File file = new File(directory, CHECKPOINT);
+        if ( !file.exists() ) {
+            return 1;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readLong();
+        }
+        catch (IOException ex) {
+            // Replaying too much is safe, skipping is not
+            Logger.getLogger(BatchLog.class.getName()).log(Level.WARNING,
+                    "Unreadable batch log checkpoint, replaying the whole log", ex);
+            return 1;
+        }
+        finally {
+            if ( in != null ) {
+                try {
+                    in.close();
+                }
+                catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static BatchRequest decode(byte[] payload) throws IOException, JSONException {
+        JSONObject data = new JSONObject(new String(payload, "UTF-8"));
+        return new BatchRequest(data.getString("requestType"), data.getString("url"),
+                data.isNull("body") ? null : data.optString("body"));
+    }
+
+    private static int crc(long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(sequence).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private void advanceSynced(long sequence) {
+        long current;
+        while ( (current = synced.get()) < sequence && !synced.compareAndSet(current, sequence) ) {
+            // Lost a race with another sync, try again
+        }
+    }
+
+    /**
+     * @return the segment files, oldest first
+     */
+    private File[] segments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if ( files == null ) {
+            return new File[0];
+        }
+        // Zero-padded names sort in sequence order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long firstSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
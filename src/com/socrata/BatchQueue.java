@@ -0,0 +1,199 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batch requests waiting to be sent to /batches.
+ *
+ * When any of its limits is set, the queue asks for a flush in the
+ * background as soon as it holds that many entries or bytes, or once its
+ * oldest entry has waited that long, whichever comes first. Otherwise
+ * entries wait for an explicit sendBatchRequest().
+ *
+ * Any number of threads may add at once without locking: entries go onto a
+ * lock-free linked queue and the totals are atomic counters. Only one
+ * thread at a time may drain or requeue, which ApiBase guarantees.
+ */
+public class BatchQueue {
+    private final Queue<BatchRequest> entries = new ConcurrentLinkedQueue<BatchRequest>();
+    private final Queue<BatchRequest> retries = new ConcurrentLinkedQueue<BatchRequest>();
+    private final AtomicInteger       count   = new AtomicInteger();
+    private final AtomicLong          bytes   = new AtomicLong();
+    private final int                 maxEntries;
+    private final long                maxBytes;
+    private final long                maxAge;
+    private final Runnable            flusher;
+    private final BatchLog            log;
+
+    private final AtomicBoolean flushPending  = new AtomicBoolean();
+    private final AtomicBoolean ageCheckArmed = new AtomicBoolean();
+    private volatile boolean    closed;
+
+    /**
+     * @param maxEntries entries that trigger a flush, or 0 for no limit
+     * @param maxBytes bytes that trigger a flush, or 0 for no limit
+     * @param maxAge milliseconds the oldest entry may wait, or 0 for no limit
+     * @param flusher sends the queue; run on the fan-out executor
+     * @param log where entries are written before they are queued, or null
+     */
+    BatchQueue(int maxEntries, long maxBytes, long maxAge, Runnable flusher, BatchLog log) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.flusher = flusher;
+        this.log = log;
+    }
+
+    /**
+     * Appends a request, starting a background flush if a limit is reached.
+     * Safe to call from any number of threads. With a batch log the request
+     * is written to it first.
+     * @param request the request to queue
+     */
+    public void add(BatchRequest request) {
+        if ( log != null ) {
+            log.append(request);
+        }
+        request.queuedAt = System.nanoTime();
+        // Offer before counting, so a non-zero count always has entries behind it
+        entries.offer(request);
+        long total = bytes.addAndGet(request.byteSize());
+        int size = count.incrementAndGet();
+        if ( size == 1 ) {
+            scheduleAgeCheck(maxAge);
+        }
+        if ( (maxEntries > 0 && size >= maxEntries) || (maxBytes > 0 && total >= maxBytes) ) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * @return the number of queued requests
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * @return the approximate size of the queued requests, in bytes
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Removes and returns what is in the queue: requeued failures first,
+     * then new entries. Entries added while draining may be left for the
+     * next flush.
+     * @return the queued requests, oldest first
+     */
+    List<BatchRequest> drain() {
+        flushPending.set(false);
+        int limit = count.get();
+        List<BatchRequest> drained = new ArrayList<BatchRequest>(limit);
+        long size = 0;
+        BatchRequest request;
+        while ( drained.size() < limit && (request = retries.poll()) != null ) {
+            drained.add(request);
+            size += request.byteSize();
+        }
+        while ( drained.size() < limit && (request = entries.poll()) != null ) {
+            drained.add(request);
+            size += request.byteSize();
+        }
+        bytes.addAndGet(-size);
+        if ( count.addAndGet(-drained.size()) > 0 ) {
+            scheduleAgeCheck(maxAge);
+        }
+        return drained;
+    }
+
+    /**
+     * Puts requests that could not be sent back at the head of the queue.
+     * They are retried when the age limit next fires or the queue fills up
+     * again, not immediately.
+     * @param failed the requests, oldest first
+     */
+    void requeue(List<BatchRequest> failed) {
+        if ( failed.isEmpty() ) {
+            return;
+        }
+        long now = System.nanoTime();
+        long size = 0;
+        for ( BatchRequest request : failed ) {
+            request.queuedAt = now;
+            retries.offer(request);
+            size += request.byteSize();
+        }
+        bytes.addAndGet(size);
+        count.addAndGet(failed.size());
+        scheduleAgeCheck(maxAge);
+    }
+
+    /**
+     * Stops background flushing; queued entries stay until sent explicitly
+     */
+    void close() {
+        closed = true;
+    }
+
+    private void requestFlush() {
+        if ( !closed && flushPending.compareAndSet(false, true) ) {
+            Workers.fanOutExecutor().execute(flusher);
+        }
+    }
+
+    /**
+     * Arms the age timer unless it is already running. When it fires it
+     * flushes if the oldest entry is old enough, otherwise re-arms itself
+     * for when it will be.
+     */
+    private void scheduleAgeCheck(long delay) {
+        if ( maxAge <= 0 || closed || !ageCheckArmed.compareAndSet(false, true) ) {
+            return;
+        }
+        Workers.scheduler().schedule(new Runnable() {
+            public void run() {
+                ageCheckArmed.set(false);
+                BatchRequest oldest = retries.peek();
+                if ( oldest == null ) {
+                    oldest = entries.peek();
+                }
+                if ( oldest == null ) {
+                    return;
+                }
+                long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt);
+                if ( age >= maxAge ) {
+                    requestFlush();
+                }
+                else {
+                    scheduleAgeCheck(maxAge - age);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -29,6 +29,16 @@ import java.util.HashMap;
 
 public class BatchRequest {
     private Map data;
+    private int byteSize;
+
+    // When the request entered the batch queue, from System.nanoTime()
+    volatile long queuedAt;
+
+    // How many times the server has rejected this request, see BatchSender
+    int attempts;
+
+    // Position in the batch log, or 0 if not logged, see BatchLog
+    long sequence;
 
     /**
      * Simple constructor, sets up the map of data to be converted to JSON
@@ -41,6 +51,7 @@ public class BatchRequest {
         data.put("url", url);
         data.put("requestType", requestType);
         data.put("body", body);
+        this.byteSize = requestType.length() + url.length() + (body == null ? 0 : body.length());
     }
 
     /**
@@ -51,4 +62,11 @@ public class BatchRequest {
         return this.data;
     }
 
+    /**
+     * @return roughly how many bytes this request adds to a batch
+     */
+    int byteSize() {
+        return this.byteSize;
+    }
+
 }
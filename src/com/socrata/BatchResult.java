@@ -0,0 +1,165 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened to each entry of a batch flush: sent successfully, failed
+ * and queued again for another attempt, or failed for good and moved to
+ * the dead-letter list.
+ */
+public class BatchResult {
+    private final int                entries;
+    private int                      succeeded;
+    private final List<Failure>      failures     = new ArrayList<Failure>();
+    private final List<BatchRequest> requeued     = new ArrayList<BatchRequest>();
+    private final List<BatchRequest> deadLettered = new ArrayList<BatchRequest>();
+
+    /**
+     * @param entries how many entries the flush started with
+     */
+    BatchResult(int entries) {
+        this.entries = entries;
+    }
+
+    synchronized void succeeded(int count) {
+        succeeded += count;
+    }
+
+    /**
+     * Records an entry the server rejected
+     * @param request the entry
+     * @param status the entry's own status code, or 0 if unknown
+     * @param message the server's explanation, if any
+     * @param retry whether the entry goes back on the queue; if not, it is
+     *        dead-lettered
+     */
+    synchronized void failed(BatchRequest request, int status, String message, boolean retry) {
+        failures.add(new Failure(request, status, message, !retry));
+        if ( retry ) {
+            requeued.add(request);
+        }
+        else {
+            deadLettered.add(request);
+        }
+    }
+
+    /**
+     * Records entries that were never sent, e.g. because an earlier chunk
+     * for the same dataset failed
+     */
+    synchronized void unsent(List<BatchRequest> requests) {
+        requeued.addAll(requests);
+    }
+
+    /**
+     * @return how many entries the flush started with
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return how many entries the server accepted
+     */
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return the entries the server rejected, with the reason for each
+     */
+    public synchronized List<Failure> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<Failure>(failures));
+    }
+
+    /**
+     * @return the entries put back on the queue, whether rejected or unsent
+     */
+    public synchronized List<BatchRequest> getRequeued() {
+        return Collections.unmodifiableList(new ArrayList<BatchRequest>(requeued));
+    }
+
+    /**
+     * @return the entries given up on; see ApiBase.drainDeadLetters()
+     */
+    public synchronized List<BatchRequest> getDeadLettered() {
+        return Collections.unmodifiableList(new ArrayList<BatchRequest>(deadLettered));
+    }
+
+    /**
+     * @return true if there was something to send and all of it was accepted
+     */
+    public synchronized boolean isSuccess() {
+        return entries > 0 && succeeded == entries;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchResult(" + succeeded + " of " + entries + " succeeded, " +
+                requeued.size() + " requeued, " + deadLettered.size() + " dead-lettered)";
+    }
+
+    /**
+     * One entry the server rejected
+     */
+    public static class Failure {
+        private final BatchRequest request;
+        private final int          status;
+        private final String       message;
+        private final boolean      deadLettered;
+
+        Failure(BatchRequest request, int status, String message, boolean deadLettered) {
+            this.request = request;
+            this.status = status;
+            this.message = message;
+            this.deadLettered = deadLettered;
+        }
+
+        public BatchRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * @return the entry's own status code, or 0 if the server gave none
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return whether the entry was given up on rather than requeued
+         */
+        public boolean isDeadLettered() {
+            return deadLettered;
+        }
+
+        @Override
+        public String toString() {
+            return request.data().get("requestType") + " " + request.data().get("url") +
+                    ": " + status + " " + message;
+        }
+    }
+}
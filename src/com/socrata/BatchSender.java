@@ -0,0 +1,312 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Sends a drained batch queue as a series of server-sized /batches posts.
+ *
+ * Entries are split into lanes by dataset, and each lane into chunks of at
+ * most batch_chunk_entries entries and batch_chunk_bytes bytes. Lanes are
+ * sent in parallel on Workers.batchExecutor(), with at most
+ * batch_max_in_flight posts outstanding at once. Within a lane chunks go
+ * one after another. If a post fails as a whole, each of its entries uses
+ * up one of its batch_max_attempts tries and is requeued, or dead-lettered
+ * once out of tries; the rest of the lane is handed back unsent. With
+ * batch_ordered turned off every chunk is sent independently instead.
+ *
+ * A post the server accepts can still reject some of its entries; each
+ * element of the response array is matched to its entry. Rejected entries
+ * are requeued if the failure looks transient (no status, 408, 429 or 5xx)
+ * and they have tries left, and dead-lettered otherwise. With batch_ordered
+ * on, the rest of the lane is then held back too, so a requeued entry is
+ * sent ahead of everything queued after its chunk. It still lands after
+ * the entries that followed it in its own chunk, which the server has
+ * already applied: order within a dataset is kept only up to that.
+ */
+class BatchSender {
+    private static final Pattern DATASET = Pattern.compile("^/views/([^/.?]+)");
+
+    private final ApiBase owner;
+    private final int     chunkEntries;
+    private final long    chunkBytes;
+    private final int     maxInFlight;
+    private final boolean ordered;
+    private final int     maxAttempts;
+
+    /**
+     * @param owner the object whose postBatch() sends each chunk
+     * @param chunkEntries most entries per post
+     * @param chunkBytes most bytes per post; a single larger entry is sent alone
+     * @param maxInFlight most posts outstanding at once
+     * @param ordered whether writes to a dataset must keep their order
+     * @param maxAttempts how many times an entry the server rejects is tried
+     */
+    BatchSender(ApiBase owner, int chunkEntries, long chunkBytes, int maxInFlight,
+            boolean ordered, int maxAttempts) {
+        this.owner = owner;
+        this.chunkEntries = Math.max(1, chunkEntries);
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.ordered = ordered;
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Sends the entries and waits for every lane to finish
+     * @param entries the requests to send, oldest first
+     * @return what happened to each entry
+     */
+    BatchResult send(List<BatchRequest> entries) {
+        final BatchResult result = new BatchResult(entries.size());
+        long started = System.currentTimeMillis();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicInteger sentChunks = new AtomicInteger();
+        final AtomicLong sentBytes = new AtomicLong();
+
+        List<List<BatchRequest>> datasets = lanes(entries);
+        final List<List<BatchRequest>> lanes = new ArrayList<List<BatchRequest>>();
+        for ( List<BatchRequest> dataset : datasets ) {
+            if ( ordered ) {
+                lanes.add(dataset);
+            }
+            else {
+                lanes.addAll(chunk(dataset));
+            }
+        }
+        // How many entries at the head of each lane have been sent
+        final AtomicIntegerArray progress = new AtomicIntegerArray(lanes.size());
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(lanes.size());
+        for ( int i = 0; i < lanes.size(); i++ ) {
+            final int lane = i;
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    for ( List<BatchRequest> chunk : chunk(lanes.get(lane)) ) {
+                        inFlight.acquire();
+                        JsonPayload response;
+                        try {
+                            response = owner.postBatch(chunk);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                        progress.addAndGet(lane, chunk.size());
+                        if ( response == null ) {
+                            postFailed(chunk, result);
+                            // Hold back the rest of the lane to keep its order
+                            return false;
+                        }
+                        sentChunks.incrementAndGet();
+                        sentBytes.addAndGet(bytes(chunk));
+                        if ( !check(chunk, response, result) && ordered ) {
+                            // Let the retries go ahead of the rest of the lane
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+
+        if ( tasks.size() == 1 ) {
+            try {
+                tasks.get(0).call();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception ex) {
+                // e.g. CircuitOpenException; the lane's unsent entries are requeued below
+                Logger.getLogger(BatchSender.class.getName()).log(Level.SEVERE,
+                        "Batch lane failed", ex);
+            }
+        }
+        else {
+            // Not the fan-out pool: a background flush is already running on it
+            Workers.invokeAll(tasks, Workers.batchExecutor());
+        }
+
+        int sent = entries.size();
+        for ( int i = 0; i < lanes.size(); i++ ) {
+            List<BatchRequest> lane = lanes.get(i);
+            result.unsent(lane.subList(progress.get(i), lane.size()));
+            sent -= lane.size() - progress.get(i);
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        Logger.getLogger(BatchSender.class.getName()).log(Level.INFO, "Sent " + sent +
+                " of " + entries.size() + " batch entries in " + sentChunks.get() +
+                " posts over " + datasets.size() + " datasets in " + elapsed + "ms (" +
+                (sent * 1000L / elapsed) + " entries/s, " +
+                (sentBytes.get() * 1000L / elapsed / 1024) + " KB/s); " + result);
+        return result;
+    }
+
+    /**
+     * Counts a try against every entry of a chunk whose post failed as a
+     * whole, requeueing those with tries left and dead-lettering the rest
+     */
+    private void postFailed(List<BatchRequest> chunk, BatchResult result) {
+        for ( BatchRequest entry : chunk ) {
+            entry.attempts++;
+            result.failed(entry, 0, "Batch post failed", entry.attempts < maxAttempts);
+        }
+    }
+
+    /**
+     * Matches each element of a /batches response to its entry and records
+     * whether the server accepted it. A response that is not an array of
+     * the same length says nothing per entry, so the whole chunk counts as
+     * accepted, as it always has.
+     * @return false if any entry was requeued
+     */
+    private boolean check(List<BatchRequest> chunk, JsonPayload response, BatchResult result) {
+        JSONArray results = response.getArray();
+        if ( results == null || results.length() != chunk.size() ) {
+            result.succeeded(chunk.size());
+            return true;
+        }
+        boolean allDone = true;
+        int succeeded = 0;
+        for ( int i = 0; i < chunk.size(); i++ ) {
+            BatchRequest entry = chunk.get(i);
+            JSONObject outcome = results.optJSONObject(i);
+            int status = status(outcome);
+            if ( status < 400 && !hasError(outcome) ) {
+                succeeded++;
+                continue;
+            }
+            entry.attempts++;
+            boolean retry = (status == 0 || status == 408 || status == 429 || status >= 500) &&
+                    entry.attempts < maxAttempts;
+            result.failed(entry, status, message(outcome), retry);
+            allDone &= !retry;
+        }
+        result.succeeded(succeeded);
+        return allDone;
+    }
+
+    /**
+     * @return the entry's own HTTP status, or 0 if the server gave none
+     */
+    private static int status(JSONObject outcome) {
+        if ( outcome == null ) {
+            return 0;
+        }
+        return outcome.optInt("responseCode", outcome.optInt("status", 0));
+    }
+
+    /**
+     * @return whether the entry's result carries an "error", as
+     *         ApiBase.isErroneous() checks for whole responses
+     */
+    private static boolean hasError(JSONObject outcome) {
+        Object error = outcome == null ? null : outcome.opt("error");
+        return error != null && error != JSONObject.NULL && !Boolean.FALSE.equals(error);
+    }
+
+    /**
+     * @return the server's explanation of a rejected entry, if any
+     */
+    private static String message(JSONObject outcome) {
+        if ( outcome == null ) {
+            return null;
+        }
+        String message = outcome.optString("message", null);
+        if ( message == null && outcome.opt("error") instanceof String ) {
+            message = outcome.optString("error");
+        }
+        if ( message == null ) {
+            Object body = outcome.opt("body");
+            if ( body instanceof JSONObject ) {
+                message = ((JSONObject) body).optString("message", null);
+            }
+            if ( message == null && body != null && body != JSONObject.NULL ) {
+                message = body.toString();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the entries grouped by the dataset they write to, in first-seen
+     *         order, each group keeping queue order
+     */
+    private static List<List<BatchRequest>> lanes(List<BatchRequest> entries) {
+        Map<String, List<BatchRequest>> lanes = new LinkedHashMap<String, List<BatchRequest>>();
+        for ( BatchRequest entry : entries ) {
+            String url = String.valueOf(entry.data().get("url"));
+            Matcher dataset = DATASET.matcher(url);
+            String key = dataset.find() ? dataset.group(1) : "";
+            List<BatchRequest> lane = lanes.get(key);
+            if ( lane == null ) {
+                lane = new ArrayList<BatchRequest>();
+                lanes.put(key, lane);
+            }
+            lane.add(entry);
+        }
+        return new ArrayList<List<BatchRequest>>(lanes.values());
+    }
+
+    /**
+     * @return the lane cut into chunks within the entry and byte limits
+     */
+    private List<List<BatchRequest>> chunk(List<BatchRequest> lane) {
+        List<List<BatchRequest>> chunks = new ArrayList<List<BatchRequest>>();
+        List<BatchRequest> chunk = new ArrayList<BatchRequest>();
+        long size = 0;
+        for ( BatchRequest entry : lane ) {
+            if ( !chunk.isEmpty() && (chunk.size() >= chunkEntries ||
+                    size + entry.byteSize() > chunkBytes) ) {
+                chunks.add(chunk);
+                chunk = new ArrayList<BatchRequest>();
+                size = 0;
+            }
+            chunk.add(entry);
+            size += entry.byteSize();
+        }
+        if ( !chunk.isEmpty() ) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static long bytes(List<BatchRequest> chunk) {
+        long size = 0;
+        for ( BatchRequest entry : chunk ) {
+            size += entry.byteSize();
+        }
+        return size;
+    }
+}
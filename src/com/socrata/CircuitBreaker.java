@@ -0,0 +1,227 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-host circuit breaker guarding ApiBase.performRequest.
+ *
+ * While CLOSED every request goes through and its outcome is recorded in
+ * a sliding window of the most recent calls. Once the window holds enough
+ * calls and either the failure rate or the slow-call rate crosses its
+ * threshold, the breaker OPENs and requests fail immediately with a
+ * CircuitOpenException. After the open duration it goes HALF_OPEN and
+ * lets a few probe requests through: if they all succeed it closes again,
+ * otherwise it reopens.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String host;
+    private final int    failureRateThreshold;
+    private final int    slowCallRateThreshold;
+    private final long   slowCallDuration;
+    private final int    minimumCalls;
+    private final long   openDuration;
+    private final int    halfOpenCalls;
+
+    // Ring buffer of recent outcomes, guarded by this
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int   next, recorded, failures, slowCalls;
+
+    private State state = State.CLOSED;
+    private long  openedAt;
+    private int   probesStarted, probesSucceeded;
+
+    private CircuitBreaker(String host, ResourceBundle properties) {
+        this.host = host;
+        this.failureRateThreshold = ApiBase.intSetting(properties, "circuit_failure_rate", 50);
+        this.slowCallRateThreshold = ApiBase.intSetting(properties, "circuit_slow_call_rate", 100);
+        this.slowCallDuration = ApiBase.intSetting(properties, "circuit_slow_call_duration", 5000);
+        this.minimumCalls = ApiBase.intSetting(properties, "circuit_minimum_calls", 10);
+        this.openDuration = ApiBase.intSetting(properties, "circuit_open_duration", 30000);
+        this.halfOpenCalls = ApiBase.intSetting(properties, "circuit_half_open_calls", 3);
+
+        int window = Math.max(1, ApiBase.intSetting(properties, "circuit_window", 20));
+        this.failed = new boolean[window];
+        this.slow = new boolean[window];
+    }
+
+    /**
+     * Returns the breaker for a host, creating it from the circuit_*
+     * settings if it does not exist yet
+     * @param host the host the breaker protects
+     * @param properties settings used only when creating the breaker
+     * @return the shared breaker, or null if circuit breaking is disabled
+     */
+    static CircuitBreaker forHost(String host, ResourceBundle properties) {
+        if ( !Boolean.valueOf(ApiBase.setting(properties, "circuit_breaker", "false")) ) {
+            return null;
+        }
+        CircuitBreaker breaker = BREAKERS.get(host);
+        if ( breaker == null ) {
+            CircuitBreaker created = new CircuitBreaker(host, properties);
+            breaker = BREAKERS.putIfAbsent(host, created);
+            if ( breaker == null ) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return every breaker created so far, keyed by host
+     */
+    public static Map<String, CircuitBreaker> breakers() {
+        return Collections.unmodifiableMap(BREAKERS);
+    }
+
+    /**
+     * Asks permission to send a request
+     * @throws CircuitOpenException if the circuit is open
+     */
+    synchronized void acquire() {
+        long now = System.currentTimeMillis();
+        if ( state == State.OPEN ) {
+            long remaining = openedAt + openDuration - now;
+            if ( remaining > 0 ) {
+                throw new CircuitOpenException(host, remaining);
+            }
+            transition(State.HALF_OPEN);
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        if ( state == State.HALF_OPEN ) {
+            if ( probesStarted >= halfOpenCalls ) {
+                throw new CircuitOpenException(host, 0);
+            }
+            probesStarted++;
+        }
+    }
+
+    /**
+     * Gives back the permission from acquire() without recording an
+     * outcome, for a request that was cancelled on purpose
+     */
+    synchronized void release() {
+        if ( state == State.HALF_OPEN && probesStarted > 0 ) {
+            probesStarted--;
+        }
+    }
+
+    /**
+     * @return whether acquire() would currently let a request through
+     */
+    synchronized boolean allowsRequests() {
+        if ( state == State.OPEN ) {
+            return System.currentTimeMillis() >= openedAt + openDuration;
+        }
+        return state != State.HALF_OPEN || probesStarted < halfOpenCalls;
+    }
+
+    /**
+     * Records the outcome of a request that was let through
+     * @param success whether the host answered without a server error
+     * @param durationMillis how long the request took
+     */
+    synchronized void record(boolean success, long durationMillis) {
+        boolean isSlow = durationMillis >= slowCallDuration;
+
+        if ( state == State.HALF_OPEN ) {
+            if ( !success || isSlow ) {
+                open();
+            }
+            else if ( ++probesSucceeded >= halfOpenCalls ) {
+                reset();
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if ( state == State.OPEN ) {
+            // Finished after the breaker tripped, nothing to learn from it
+            return;
+        }
+
+        if ( recorded == failed.length ) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        }
+        else {
+            recorded++;
+        }
+        failed[next] = !success;
+        slow[next] = isSlow;
+        failures += success ? 0 : 1;
+        slowCalls += isSlow ? 1 : 0;
+        next = (next + 1) % failed.length;
+
+        if ( recorded >= minimumCalls &&
+                (failures * 100 >= failureRateThreshold * recorded ||
+                 slowCalls * 100 >= slowCallRateThreshold * recorded) ) {
+            open();
+        }
+    }
+
+    /**
+     * @return the current state of the breaker
+     */
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return the host this breaker protects
+     */
+    public String host() {
+        return host;
+    }
+
+    private void open() {
+        reset();
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private void transition(State to) {
+        if ( state != to ) {
+            Logger.getLogger(CircuitBreaker.class.getName()).log(
+                    to == State.OPEN ? Level.WARNING : Level.INFO,
+                    "Circuit breaker for " + host + " went from " + state + " to " + to);
+            state = to;
+        }
+    }
+}
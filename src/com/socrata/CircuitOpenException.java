@@ -0,0 +1,54 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+/**
+ * Thrown instead of sending a request when the circuit breaker for its
+ * host is open, i.e. the host has recently been failing or slow.
+ */
+public class CircuitOpenException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final long   retryAfterMillis;
+
+    /**
+     * @param host the host whose circuit is open
+     * @param retryAfterMillis how long until the breaker lets a probe through
+     */
+    public CircuitOpenException(String host, long retryAfterMillis) {
+        super("Circuit breaker for " + host + " is open, retry in " + retryAfterMillis + "ms");
+        this.host = host;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return the host whose circuit is open
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return milliseconds until the breaker lets a probe request through
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,378 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.http.HttpHost;
+
+/**
+ * Immutable settings shared by every Socrata object built from the same
+ * properties. The bundle is read, validated and turned into base URLs,
+ * limits and shared helpers once, so creating a Dataset or User handle is
+ * only a few field copies, even for tens of thousands of datasets.
+ *
+ * Configurations are cached per bundle, so passing the same ResourceBundle
+ * (or the same ClientConfig) to many constructors shares one instance.
+ */
+public final class ClientConfig {
+    private static final int DEFAULT_GZIP_REQUEST_THRESHOLD = 1024;
+    private static final int DEFAULT_WARMUP_CONNECTIONS     = 4;
+    private static final int DEFAULT_BATCH_CHUNK_ENTRIES    = 500;
+    private static final int DEFAULT_BATCH_CHUNK_BYTES      = 1024 * 1024;
+    private static final int DEFAULT_BATCH_MAX_IN_FLIGHT    = 4;
+    private static final int DEFAULT_BATCH_MAX_ATTEMPTS     = 3;
+
+    private static final ConcurrentMap<ResourceBundle, ClientConfig> CONFIGS =
+            new ConcurrentHashMap<ResourceBundle, ClientConfig>();
+    private static ClientConfig defaults;
+
+    private final ResourceBundle properties;
+    private final String         username, password, appToken;
+    private final String         scheme, hostname;
+    private final int            hostport;
+    private final String         httpBase, webHost;
+    private final boolean        gzipRequests, coalesceRequests, sessionCookies, batchOrdered;
+    private final int            gzipRequestThreshold, warmupConnections;
+    private final int            batchFlushEntries, batchFlushBytes, batchFlushInterval;
+    private final int            batchChunkEntries, batchChunkBytes, batchMaxInFlight;
+    private final int            batchMaxAttempts;
+    private final Timeouts       timeouts;
+    private final Map<String, Timeouts> operationTimeouts;
+    private final RetryPolicy    retryPolicy;
+    private final Transport      transport;
+    private final EndpointPool   endpointPool;
+    private final RateLimiter    rateLimiter;
+    private final Hedger         hedger;
+    private final ValidatorCache validatorCache;
+    private final DiskCache      diskCache;
+    private final BatchLog       batchLog;
+    private final RequestMetrics metrics;
+
+    private ClientConfig(ResourceBundle properties) {
+        this.properties = properties;
+        this.username = properties.getString("username");
+        this.password = properties.getString("password");
+        this.appToken = properties.getString("app_token");
+
+        this.scheme = ApiBase.setting(properties, "scheme", "http").toLowerCase();
+        if ( !"http".equals(scheme) && !"https".equals(scheme) ) {
+            throw new IllegalArgumentException("Unsupported scheme '" + scheme + "'");
+        }
+        this.hostname = ApiBase.setting(properties, "hostname", null);
+        if ( hostname == null ) {
+            throw new IllegalArgumentException("No hostname configured");
+        }
+        this.hostport = ApiBase.intSetting(properties, "hostport", "https".equals(scheme) ? 443 : 80);
+        if ( hostport <= 0 || hostport > 65535 ) {
+            throw new IllegalArgumentException("Invalid hostport " + hostport);
+        }
+        this.httpBase = scheme + "://" + hostname + ":" + hostport;
+        this.webHost = ApiBase.setting(properties, "web_host", scheme + "://" + hostname);
+
+        this.gzipRequests = Boolean.valueOf(ApiBase.setting(properties, "gzip_requests", "false"));
+        this.gzipRequestThreshold = ApiBase.intSetting(properties, "gzip_request_threshold",
+                DEFAULT_GZIP_REQUEST_THRESHOLD);
+        this.coalesceRequests = Boolean.valueOf(
+                ApiBase.setting(properties, "coalesce_requests", "true"));
+        this.sessionCookies = Boolean.valueOf(
+                ApiBase.setting(properties, "session_cookies", "true"));
+        this.warmupConnections = ApiBase.intSetting(properties, "warmup_connections",
+                DEFAULT_WARMUP_CONNECTIONS);
+        this.timeouts = Timeouts.fromProperties(properties);
+        this.operationTimeouts = Timeouts.operationsFromProperties(properties, timeouts);
+        this.retryPolicy = RetryPolicy.fromProperties(properties);
+        this.batchFlushEntries = ApiBase.intSetting(properties, "batch_flush_entries", 0);
+        this.batchFlushBytes = ApiBase.intSetting(properties, "batch_flush_bytes", 0);
+        this.batchFlushInterval = ApiBase.intSetting(properties, "batch_flush_interval", 0);
+        this.batchChunkEntries = ApiBase.intSetting(properties, "batch_chunk_entries",
+                DEFAULT_BATCH_CHUNK_ENTRIES);
+        this.batchChunkBytes = ApiBase.intSetting(properties, "batch_chunk_bytes",
+                DEFAULT_BATCH_CHUNK_BYTES);
+        this.batchMaxInFlight = ApiBase.intSetting(properties, "batch_max_in_flight",
+                DEFAULT_BATCH_MAX_IN_FLIGHT);
+        this.batchOrdered = Boolean.valueOf(ApiBase.setting(properties, "batch_ordered", "true"));
+        this.batchMaxAttempts = ApiBase.intSetting(properties, "batch_max_attempts",
+                DEFAULT_BATCH_MAX_ATTEMPTS);
+
+        this.transport = ConnectionPool.transport(properties);
+        this.endpointPool = EndpointPool.fromProperties(properties,
+                new HttpHost(hostname, hostport, scheme));
+        String host = endpointPool.primary().toHostString();
+        this.rateLimiter = RateLimiter.forKey(appToken, host,
+                ApiBase.intSetting(properties, "rate_limit_requests", 0),
+                ApiBase.intSetting(properties, "rate_limit_bytes", 0));
+        this.hedger = Hedger.forHost(host, properties);
+        this.validatorCache = ValidatorCache.shared(properties);
+        this.diskCache = DiskCache.forProperties(properties);
+        this.batchLog = BatchLog.forProperties(properties, httpBase, username);
+        this.metrics = Boolean.valueOf(ApiBase.setting(properties, "request_metrics", "true")) ?
+                RequestMetrics.shared() : null;
+    }
+
+    private ClientConfig(ClientConfig base, String username, String password) {
+        this.properties = base.properties;
+        this.username = username;
+        this.password = password;
+        this.appToken = base.appToken;
+        this.scheme = base.scheme;
+        this.hostname = base.hostname;
+        this.hostport = base.hostport;
+        this.httpBase = base.httpBase;
+        this.webHost = base.webHost;
+        this.gzipRequests = base.gzipRequests;
+        this.gzipRequestThreshold = base.gzipRequestThreshold;
+        this.coalesceRequests = base.coalesceRequests;
+        this.sessionCookies = base.sessionCookies;
+        this.warmupConnections = base.warmupConnections;
+        this.batchFlushEntries = base.batchFlushEntries;
+        this.batchFlushBytes = base.batchFlushBytes;
+        this.batchFlushInterval = base.batchFlushInterval;
+        this.batchChunkEntries = base.batchChunkEntries;
+        this.batchChunkBytes = base.batchChunkBytes;
+        this.batchMaxInFlight = base.batchMaxInFlight;
+        this.batchOrdered = base.batchOrdered;
+        this.batchMaxAttempts = base.batchMaxAttempts;
+        this.timeouts = base.timeouts;
+        this.operationTimeouts = base.operationTimeouts;
+        this.retryPolicy = base.retryPolicy;
+        this.transport = base.transport;
+        this.endpointPool = base.endpointPool;
+        this.rateLimiter = base.rateLimiter;
+        this.hedger = base.hedger;
+        this.validatorCache = base.validatorCache;
+        this.diskCache = base.diskCache;
+        this.batchLog = BatchLog.forProperties(properties, httpBase, username);
+        this.metrics = base.metrics;
+    }
+
+    /**
+     * Returns the configuration for a bundle, building it the first time
+     * the bundle is seen
+     * @param properties credentials, hostnames and tuning settings
+     * @return the shared configuration for that bundle
+     * @throws IllegalArgumentException if the scheme, hostname or port is invalid
+     */
+    public static ClientConfig fromProperties(ResourceBundle properties) {
+        ClientConfig config = CONFIGS.get(properties);
+        if ( config == null ) {
+            ClientConfig created = new ClientConfig(properties);
+            config = CONFIGS.putIfAbsent(properties, created);
+            if ( config == null ) {
+                config = created;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return the configuration from the bundled com.socrata.resources
+     */
+    public static synchronized ClientConfig defaults() {
+        if ( defaults == null ) {
+            defaults = fromProperties(ResourceBundle.getBundle("com.socrata.resources"));
+        }
+        return defaults;
+    }
+
+    /**
+     * Forgets every cached configuration, so the next lookup builds one
+     * again from its bundle, picking up the transport and pools that
+     * exist then
+     */
+    static synchronized void clearCache() {
+        CONFIGS.clear();
+        defaults = null;
+    }
+
+    /**
+     * @param username the user account to connect with
+     * @param password the password to connect with
+     * @return a copy of this configuration using other credentials
+     */
+    public ClientConfig withCredentials(String username, String password) {
+        return new ClientConfig(this, username, password);
+    }
+
+    /**
+     * @return the bundle this configuration was read from
+     */
+    public ResourceBundle properties() {
+        return properties;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    String password() {
+        return password;
+    }
+
+    public String appToken() {
+        return appToken;
+    }
+
+    /**
+     * @return the base URL of the API, e.g. https://opendata.socrata.com:443
+     */
+    public String httpBase() {
+        return httpBase;
+    }
+
+    /**
+     * @return the base URL of the web site, used for dataset links
+     */
+    public String webHost() {
+        return webHost;
+    }
+
+    public Timeouts timeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the limits of operations configured with settings of their
+     *         own, see Timeouts
+     */
+    Map<String, Timeouts> operationTimeouts() {
+        return operationTimeouts;
+    }
+
+    public int warmupConnections() {
+        return warmupConnections;
+    }
+
+    /**
+     * @return queued batch entries that trigger a background flush, or 0
+     */
+    int batchFlushEntries() {
+        return batchFlushEntries;
+    }
+
+    /**
+     * @return queued batch bytes that trigger a background flush, or 0
+     */
+    int batchFlushBytes() {
+        return batchFlushBytes;
+    }
+
+    /**
+     * @return milliseconds a batch entry may wait before a flush, or 0
+     */
+    int batchFlushInterval() {
+        return batchFlushInterval;
+    }
+
+    /**
+     * @return most entries sent in one /batches post
+     */
+    int batchChunkEntries() {
+        return batchChunkEntries;
+    }
+
+    /**
+     * @return most bytes sent in one /batches post
+     */
+    int batchChunkBytes() {
+        return batchChunkBytes;
+    }
+
+    /**
+     * @return most /batches posts outstanding at once
+     */
+    int batchMaxInFlight() {
+        return batchMaxInFlight;
+    }
+
+    /**
+     * @return whether batched writes to a dataset must keep their order
+     */
+    boolean batchOrdered() {
+        return batchOrdered;
+    }
+
+    /**
+     * @return how many times a batch entry the server rejects is tried
+     */
+    int batchMaxAttempts() {
+        return batchMaxAttempts;
+    }
+
+    boolean gzipRequests() {
+        return gzipRequests;
+    }
+
+    int gzipRequestThreshold() {
+        return gzipRequestThreshold;
+    }
+
+    boolean coalesceRequests() {
+        return coalesceRequests;
+    }
+
+    boolean sessionCookies() {
+        return sessionCookies;
+    }
+
+    RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    Transport transport() {
+        return transport;
+    }
+
+    EndpointPool endpointPool() {
+        return endpointPool;
+    }
+
+    RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    Hedger hedger() {
+        return hedger;
+    }
+
+    ValidatorCache validatorCache() {
+        return validatorCache;
+    }
+
+    DiskCache diskCache() {
+        return diskCache;
+    }
+
+    /**
+     * @return the write-ahead log for batch requests, or null if disabled
+     */
+    BatchLog batchLog() {
+        return batchLog;
+    }
+
+    RequestMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientConfig(" + httpBase + ", user=" + username + ")";
+    }
+}
@@ -0,0 +1,320 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.client.protocol.ResponseProcessCookies;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Process-wide pool of HTTP connections shared by every Socrata object.
+ *
+ * The pool is created the first time any ApiBase is constructed, using the
+ * limits found in that object's properties. Later objects reuse the same
+ * client, so keep-alive connections are shared between threads and between
+ * Dataset/User instances.
+ */
+public final class ConnectionPool {
+    private static final int DEFAULT_MAX_CONNECTIONS           = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_IDLE_TIMEOUT              = 30;
+    private static final int DEFAULT_EVICTION_INTERVAL         = 5;
+    private static final int DEFAULT_TLS_SESSION_CACHE_SIZE    = 1000;
+    private static final int DEFAULT_TLS_SESSION_TIMEOUT       = 86400;
+
+    private static DefaultHttpClient           httpClient;
+    private static ThreadSafeClientConnManager connectionManager;
+    private static Transport                   transport;
+    private static SSLContext                  sslContext;
+    private static Thread                      evictor;
+
+    private ConnectionPool() {
+    }
+
+    /**
+     * Returns the shared client, creating it on first use
+     * @param properties settings used only if the pool does not exist yet
+     * @return the shared, thread-safe http client
+     */
+    static synchronized DefaultHttpClient client(ResourceBundle properties) {
+        if ( httpClient == null ) {
+            create(properties);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Returns the shared transport chosen by the "transport" setting, either
+     * "apache" (the default) or "jdk", creating it on first use
+     * @param properties settings used only if the transport does not exist yet
+     * @return the shared transport
+     */
+    static synchronized Transport transport(ResourceBundle properties) {
+        if ( transport == null ) {
+            String kind = ApiBase.setting(properties, "transport", "apache");
+            if ( "jdk".equalsIgnoreCase(kind) ) {
+                transport = new JdkTransport(Timeouts.fromProperties(properties).connectTimeout(),
+                        sslContext(properties));
+            }
+            else {
+                if ( !"apache".equalsIgnoreCase(kind) ) {
+                    Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING,
+                            "Unknown transport '" + kind + "', using apache");
+                }
+                transport = new ApacheTransport(client(properties));
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Returns the TLS context shared by both transports, creating it on
+     * first use. Its client session cache lets a new connection to a host
+     * resume an earlier TLS session (by session ticket or session id)
+     * instead of paying for a full handshake.
+     * @param properties settings used only if the context does not exist yet
+     * @return the shared TLS context
+     */
+    static synchronized SSLContext sslContext(ResourceBundle properties) {
+        if ( sslContext == null ) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                SSLSessionContext sessions = context.getClientSessionContext();
+                sessions.setSessionCacheSize(ApiBase.intSetting(properties,
+                        "tls_session_cache_size", DEFAULT_TLS_SESSION_CACHE_SIZE));
+                sessions.setSessionTimeout(ApiBase.intSetting(properties,
+                        "tls_session_timeout", DEFAULT_TLS_SESSION_TIMEOUT));
+                sslContext = context;
+            }
+            catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Could not initialise TLS", ex);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Closes every pooled connection and stops the eviction thread. Cached
+     * configurations are dropped too, so the next Socrata object to be
+     * constructed starts a fresh pool.
+     */
+    public static void shutdown() {
+        close();
+        // Outside our lock: building a configuration takes ClientConfig's, then ours
+        ClientConfig.clearCache();
+    }
+
+    private static synchronized void close() {
+        if ( evictor != null ) {
+            evictor.interrupt();
+            evictor = null;
+        }
+        if ( connectionManager != null ) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        httpClient = null;
+        transport = null;
+        sslContext = null;
+    }
+
+    /**
+     * @return the number of connections currently held by the pool
+     */
+    public static synchronized int connectionsInPool() {
+        return connectionManager == null ? 0 : connectionManager.getConnectionsInPool();
+    }
+
+    /**
+     * Opens connections to a host ahead of time and parks them in the pool,
+     * so the first real requests skip the TCP (and TLS) handshake
+     * @param client the shared client
+     * @param host the host to connect to
+     * @param count how many connections to open; capped by the per-route limit
+     * @param timeout connect timeout in milliseconds
+     * @return how many connections were opened
+     */
+    static int open(DefaultHttpClient client, HttpHost host, int count, final int timeout) {
+        final ClientConnectionManager manager = client.getConnectionManager();
+        final HttpParams params = client.getParams();
+        final HttpRoute route = new HttpRoute(host, null,
+                manager.getSchemeRegistry().getScheme(host).isLayered());
+
+        // Hold every connection until all are open, so each task gets its own
+        List<Callable<ManagedClientConnection>> tasks =
+                new ArrayList<Callable<ManagedClientConnection>>(count);
+        for ( int i = 0; i < count; i++ ) {
+            tasks.add(new Callable<ManagedClientConnection>() {
+                public ManagedClientConnection call() throws Exception {
+                    ManagedClientConnection connection = manager.requestConnection(route, null)
+                            .getConnection(timeout, TimeUnit.MILLISECONDS);
+                    try {
+                        if ( !connection.isOpen() ) {
+                            HttpParams connectParams = new DefaultedHttpParams(
+                                    new BasicHttpParams(), params);
+                            HttpConnectionParams.setConnectionTimeout(connectParams, timeout);
+                            connection.open(route, new BasicHttpContext(), connectParams);
+                        }
+                        connection.markReusable();
+                        return connection;
+                    }
+                    catch (Exception ex) {
+                        manager.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+                        throw ex;
+                    }
+                }
+            });
+        }
+
+        int opened = 0;
+        for ( ManagedClientConnection connection : Workers.invokeAll(tasks) ) {
+            if ( connection != null ) {
+                manager.releaseConnection(connection, -1, TimeUnit.MILLISECONDS);
+                opened++;
+            }
+        }
+        return opened;
+    }
+
+    private static void create(ResourceBundle properties) {
+        int maxTotal = ApiBase.intSetting(properties, "max_connections",
+                DEFAULT_MAX_CONNECTIONS);
+        int maxPerRoute = ApiBase.intSetting(properties, "max_connections_per_route",
+                DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        final long idleTimeout = ApiBase.intSetting(properties, "idle_connection_timeout",
+                DEFAULT_IDLE_TIMEOUT);
+        final long interval = ApiBase.intSetting(properties, "connection_eviction_interval",
+                DEFAULT_EVICTION_INTERVAL);
+
+        HttpParams params = new BasicHttpParams();
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", new ServerNameSocketFactory(sslContext(properties)), 443));
+
+        connectionManager = new ThreadSafeClientConnManager(schemes);
+        connectionManager.setMaxTotalConnections(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        httpClient = new DefaultHttpClient(connectionManager, params);
+
+        // Ask for gzip/deflate bodies and transparently wrap compressed
+        // responses in a streaming decompressing entity
+        httpClient.addRequestInterceptor(new RequestAcceptEncoding());
+        httpClient.addResponseInterceptor(new ResponseContentEncoding());
+
+        // Cookies are per Socrata object, not per client, see SessionCookies
+        httpClient.removeRequestInterceptorByClass(RequestAddCookies.class);
+        httpClient.removeResponseInterceptorByClass(ResponseProcessCookies.class);
+
+        // ApiBase.performRequest owns retries, see RetryPolicy
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+
+        final ThreadSafeClientConnManager manager = connectionManager;
+        evictor = new Thread("socrata-connection-evictor") {
+            @Override
+            public void run() {
+                try {
+                    while ( !isInterrupted() ) {
+                        sleep(TimeUnit.SECONDS.toMillis(interval));
+                        manager.closeExpiredConnections();
+                        manager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+                    }
+                }
+                catch (InterruptedException ex) {
+                    // Pool was shut down
+                }
+            }
+        };
+        evictor.setDaemon(true);
+        evictor.start();
+
+        Logger.getLogger(ConnectionPool.class.getName()).log(Level.INFO,
+                "Created shared connection pool (" + maxTotal + " total, " +
+                maxPerRoute + " per route)");
+    }
+
+    /**
+     * Sends the host name (SNI) in the TLS handshake, which this httpclient
+     * version leaves out. Servers behind shared front ends need it to pick
+     * the right certificate.
+     */
+    private static class ServerNameSocketFactory extends SSLSocketFactory {
+        ServerNameSocketFactory(SSLContext context) {
+            super(context);
+        }
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params) throws IOException {
+            if ( socket == null ) {
+                socket = createSocket();
+            }
+            if ( socket instanceof SSLSocket ) {
+                SSLSocket ssl = (SSLSocket) socket;
+                try {
+                    SSLParameters parameters = ssl.getSSLParameters();
+                    parameters.setServerNames(
+                            Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+                    ssl.setSSLParameters(parameters);
+                }
+                catch (IllegalArgumentException ex) {
+                    // An IP address rather than a name, nothing to indicate
+                }
+            }
+            return super.connectSocket(socket, host, port, localAddress, localPort, params);
+        }
+    }
+}
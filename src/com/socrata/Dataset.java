@@ -20,9 +20,12 @@ limitations under the License.
 
 import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import org.apache.http.client.methods.HttpDelete;
@@ -64,6 +67,14 @@ public class Dataset extends ApiBase {
         super(properties);
     }
 
+    /**
+     * Class constructor sharing an existing configuration
+     * @param config configuration from an existing Socrata object
+     */
+    public Dataset(ClientConfig config) {
+        super(config);
+    }
+
     /**
      * Uid of the dataset
      * @param uid
@@ -225,6 +236,35 @@ public class Dataset extends ApiBase {
         return !isErroneous(response);
     }
 
+    /**
+     * Adds many rows to the dataset, sending them in parallel on the
+     * fan-out executor
+     * @param rows a list of key/value pairs of column/data
+     * @return how many rows were added successfully
+     */
+    @SuppressWarnings("rawtypes")
+    public int addRows(List<Map> rows) {
+        if ( ! attached() ) {
+            return 0;
+        }
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(rows.size());
+        for ( final Map row : rows ) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    return addRow(row);
+                }
+            });
+        }
+
+        int added = 0;
+        for ( Boolean result : Workers.invokeAll(tasks) ) {
+            if ( Boolean.TRUE.equals(result) ) {
+                added++;
+            }
+        }
+        return added;
+    }
+
     /**
      * Creates an "add row" request and adds it to the batch queue
      * @param row Key/value pairs of column data
@@ -418,7 +458,7 @@ public class Dataset extends ApiBase {
         reqEntity.addPart(field, fileBody);
 
         poster.setEntity(reqEntity);
-        JsonPayload response = performRequest(poster);
+        JsonPayload response = performRequest(poster, "upload");
 
         if ( isErroneous(response) ) {
             log(Level.SEVERE, "Failed to upload file.", null);
@@ -486,7 +526,10 @@ public class Dataset extends ApiBase {
         }
         HttpGet request = new HttpGet(httpBase() + "/views/" + id() +
                 ".json");
-        JsonPayload response = performRequest(request);
+        JsonPayload response = performHedgedRequest(request, "metadata");
+        if ( isErroneous(response) ) {
+            return null;
+        }
         return response.getObject();
     }
 
@@ -502,7 +545,7 @@ public class Dataset extends ApiBase {
         HttpGet request = new HttpGet(httpBase() + "/views/" +
                 id() + "/columns.json");
 
-        JsonPayload response = performRequest(request);
+        JsonPayload response = performHedgedRequest(request, "columns");
         
         if ( !isErroneous(response) ) {
             return response.getArray();
@@ -522,8 +565,10 @@ public class Dataset extends ApiBase {
         HttpGet request = new HttpGet(httpBase() + "/views/" +
                 id() + "/rows.json");
 
-        JsonPayload response = performRequest(request);
-
+        JsonPayload response = performHedgedRequest(request, "rows");
+        if ( isErroneous(response) ) {
+            return null;
+        }
         return response.getArray();
     }
 
@@ -621,7 +666,7 @@ public class Dataset extends ApiBase {
      * @return a rooted url for this dataset, in short form
      */
     public String shortUrl() {
-        return properties.getString("web_host") + "/d/" + id();
+        return config.webHost() + "/d/" + id();
     }
 
     /**
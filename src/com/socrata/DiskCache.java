@@ -0,0 +1,383 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional on-disk cache of GET responses for dataset metadata, columns
+ * and user dataset lists, so a freshly started process does not have to
+ * fetch them all again.
+ *
+ * Each response is one file named after a hash of its cache key, holding
+ * a small header followed by the deflated JSON text:
+ *
+ *   int    magic ("SCRC")
+ *   byte   format version
+ *   long   expiry time, epoch milliseconds
+ *   UTF    ETag, or empty
+ *   UTF    Last-Modified, or empty
+ *   ...    deflated UTF-8 JSON until end of file
+ *
+ * Files are written to a temporary name, synced and then renamed into
+ * place, so a crash leaves either the old entry or the new one. The
+ * total size is kept under a byte budget by evicting the least recently
+ * used files; file modification times record use across restarts.
+ */
+class DiskCache {
+    private static final int    MAGIC   = 0x53435243;
+    private static final byte   VERSION = 1;
+    private static final String SUFFIX  = ".cache";
+
+    private static final Pattern METADATA = Pattern.compile(".*/views/[a-z0-9]{4}-[a-z0-9]{4}\\.json$");
+    private static final Pattern COLUMNS  = Pattern.compile(".*/views/[a-z0-9]{4}-[a-z0-9]{4}/columns\\.json$");
+    private static final Pattern DATASETS = Pattern.compile(".*/users/[^/]+/views\\.json$");
+
+    private static final Map<String, DiskCache> CACHES = new LinkedHashMap<String, DiskCache>();
+
+    private final File directory;
+    private final long maxBytes;
+    private final long metadataTtl;
+    private final long columnsTtl;
+    private final long datasetsTtl;
+
+    // File name to size, in least to most recently used order; guarded by this
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    private DiskCache(File directory, ResourceBundle properties) {
+        this.directory = directory;
+        this.maxBytes = ApiBase.intSetting(properties, "disk_cache_max_bytes", 64 * 1024 * 1024);
+        this.metadataTtl = TimeUnit.SECONDS.toMillis(
+                ApiBase.intSetting(properties, "disk_cache_ttl_metadata", 3600));
+        this.columnsTtl = TimeUnit.SECONDS.toMillis(
+                ApiBase.intSetting(properties, "disk_cache_ttl_columns", 3600));
+        this.datasetsTtl = TimeUnit.SECONDS.toMillis(
+                ApiBase.intSetting(properties, "disk_cache_ttl_datasets", 300));
+        load();
+    }
+
+    /**
+     * Returns the cache for the configured directory, creating it on first use
+     * @param properties where to find disk_cache_dir and the limits
+     * @return the shared cache, or null if disk_cache_dir is not set
+     */
+    static DiskCache forProperties(ResourceBundle properties) {
+        String dir = ApiBase.setting(properties, "disk_cache_dir", null);
+        if ( dir == null ) {
+            return null;
+        }
+        synchronized ( CACHES ) {
+            DiskCache cache = CACHES.get(dir);
+            if ( cache == null ) {
+                File directory = new File(dir);
+                if ( !directory.isDirectory() && !directory.mkdirs() ) {
+                    Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING,
+                            "Could not create disk cache directory " + dir + ", disk cache disabled");
+                    return null;
+                }
+                cache = new DiskCache(directory, properties);
+                CACHES.put(dir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @param url a GET url
+     * @return whether responses from this url belong in the disk cache
+     */
+    boolean accepts(String url) {
+        return ttl(url) > 0;
+    }
+
+    /**
+     * Reads an entry back from disk
+     * @param key the cache key
+     * @return the entry, fresh or expired, or null if there is none
+     */
+    Entry get(String key) {
+        String name = fileName(key);
+        synchronized ( this ) {
+            if ( index.get(name) == null ) {
+                return null;
+            }
+        }
+
+        File file = new File(directory, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ( in.readInt() != MAGIC || in.readByte() != VERSION ) {
+                throw new IOException("Unrecognized cache file format");
+            }
+            long expires = in.readLong();
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            JsonPayload payload = new JsonPayload(new InputStreamReader(
+                    new InflaterInputStream(in), "UTF-8"));
+            if ( payload.readError() != null ) {
+                throw payload.readError();
+            }
+            if ( payload.getObject() == null && payload.getArray() == null ) {
+                throw new IOException("Cache file holds no JSON");
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(expires, etag.isEmpty() ? null : etag,
+                    lastModified.isEmpty() ? null : lastModified, payload);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING,
+                    "Discarding unreadable disk cache entry " + file, ex);
+            removeFile(name);
+            return null;
+        }
+        finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes an entry to disk, replacing any previous one
+     * @param key the cache key
+     * @param url the url the payload came from, to pick its TTL
+     * @param etag the ETag validator, or null
+     * @param lastModified the Last-Modified validator, or null
+     * @param payload the parsed response
+     */
+    void put(String key, String url, String etag, String lastModified, JsonPayload payload) {
+        String json = payload.toJson();
+        long ttl = ttl(url);
+        if ( json == null || ttl <= 0 ) {
+            return;
+        }
+
+        String name = fileName(key);
+        File target = new File(directory, name);
+        File temp = null;
+        try {
+            temp = File.createTempFile(name, ".tmp", directory);
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(System.currentTimeMillis() + ttl);
+                out.writeUTF(etag == null ? "" : etag);
+                out.writeUTF(lastModified == null ? "" : lastModified);
+                DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+                Writer writer = new OutputStreamWriter(deflater, "UTF-8");
+                writer.write(json);
+                writer.flush();
+                deflater.finish();
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            finally {
+                close(fileOut);
+            }
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(DiskCache.class.getName()).log(Level.WARNING,
+                    "Could not write disk cache entry " + target, ex);
+            if ( temp != null ) {
+                temp.delete();
+            }
+            return;
+        }
+
+        synchronized ( this ) {
+            Long previous = index.put(name, target.length());
+            totalBytes += target.length() - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * Deletes an entry, e.g. because a write made it stale
+     * @param key the cache key
+     */
+    void remove(String key) {
+        String name = fileName(key);
+        synchronized ( this ) {
+            if ( index.get(name) == null ) {
+                return;
+            }
+        }
+        removeFile(name);
+    }
+
+    /**
+     * @return the bytes currently used on disk
+     */
+    synchronized long size() {
+        return totalBytes;
+    }
+
+    private long ttl(String url) {
+        if ( METADATA.matcher(url).matches() ) {
+            return metadataTtl;
+        }
+        if ( COLUMNS.matcher(url).matches() ) {
+            return columnsTtl;
+        }
+        if ( DATASETS.matcher(url).matches() ) {
+            return datasetsTtl;
+        }
+        return 0;
+    }
+
+    /**
+     * Rebuilds the index from the directory, oldest used first, and
+     * removes temporary files left behind by a crash
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if ( files == null ) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized ( this ) {
+            for ( File file : files ) {
+                if ( file.getName().endsWith(".tmp") ) {
+                    file.delete();
+                }
+                else if ( file.getName().endsWith(SUFFIX) ) {
+                    index.put(file.getName(), file.length());
+                    totalBytes += file.length();
+                }
+            }
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while ( totalBytes > maxBytes && eldest.hasNext() ) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void removeFile(String name) {
+        Long size = index.remove(name);
+        if ( size != null ) {
+            totalBytes -= size;
+        }
+        new File(directory, name).delete();
+    }
+
+    /**
+     * Hashes the key so that neither urls nor credentials appear on disk
+     */
+    private static String fileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+            for ( byte b : hash ) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(SUFFIX).toString();
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if ( closeable != null ) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A response read back from disk
+     */
+    static class Entry {
+        final long        expires;
+        final String      etag;
+        final String      lastModified;
+        final JsonPayload payload;
+
+        Entry(long expires, String etag, String lastModified, JsonPayload payload) {
+            this.expires = expires;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.payload = payload;
+        }
+
+        /**
+         * @return whether the entry may still be used without asking the server
+         */
+        boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * @return the entry as something to revalidate with, or null if it
+         *         has no validators
+         */
+        ValidatorCache.Entry validators() {
+            if ( etag == null && lastModified == null ) {
+                return null;
+            }
+            return new ValidatorCache.Entry(etag, lastModified, payload);
+        }
+    }
+}
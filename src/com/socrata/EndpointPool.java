@@ -0,0 +1,448 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+/**
+ * A set of equivalent hosts, such as regional front ends or a caching
+ * proxy, that requests can be sent to interchangeably.
+ *
+ * Each request goes to the endpoint with the lowest peak-EWMA latency,
+ * weighted by how many requests it already has in flight; an endpoint
+ * without samples, new or just readmitted, is assumed to be as fast as
+ * the median of the others. An endpoint that fails several times in a
+ * row is ejected; a background probe sends it a HEAD request every so
+ * often and brings it back once it answers.
+ * With circuit breaking enabled each endpoint has its own breaker, and
+ * endpoints whose breaker is open are passed over like ejected ones.
+ */
+public class EndpointPool {
+    private static final long   DECAY_NANOS           = TimeUnit.SECONDS.toNanos(10);
+    private static final long   FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long   DEFAULT_SEED_NANOS    = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ConcurrentMap<String, EndpointPool> POOLS =
+            new ConcurrentHashMap<String, EndpointPool>();
+
+    private final List<Endpoint> endpoints;
+    private final int            maxFailures;
+    private final long           probeInterval;
+    private final ResourceBundle properties;
+    private boolean              probing;
+
+    private EndpointPool(List<HttpHost> hosts, ResourceBundle properties) {
+        List<Endpoint> list = new ArrayList<Endpoint>(hosts.size());
+        for ( HttpHost host : hosts ) {
+            list.add(new Endpoint(host, CircuitBreaker.forHost(host.toHostString(), properties)));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.maxFailures = ApiBase.intSetting(properties, "endpoint_max_failures", 3);
+        this.probeInterval = ApiBase.intSetting(properties, "endpoint_probe_interval", 5000);
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the pool for the hosts configured in the properties: the
+     * comma-separated [scheme://]host[:port] list in "hostnames" if present,
+     * otherwise just the primary host. Hosts without a scheme use the
+     * primary host's scheme.
+     * @param properties where to find the hosts
+     * @param primary the validated "scheme"/"hostname"/"hostport" host
+     * @return the shared pool for that list of hosts
+     * @throws IllegalArgumentException if an entry's host or port is invalid
+     */
+    static EndpointPool fromProperties(ResourceBundle properties, HttpHost primary) {
+        String scheme = primary.getSchemeName();
+        String list = ApiBase.setting(properties, "hostnames", null);
+        List<HttpHost> hosts = new ArrayList<HttpHost>();
+        if ( list == null ) {
+            hosts.add(primary);
+        }
+        else {
+            for ( String entry : list.split(",") ) {
+                entry = entry.trim();
+                if ( !entry.isEmpty() ) {
+                    hosts.add(parseHost(entry, scheme));
+                }
+            }
+        }
+
+        String key = hosts.toString();
+        EndpointPool pool = POOLS.get(key);
+        if ( pool == null ) {
+            EndpointPool created = new EndpointPool(hosts, properties);
+            pool = POOLS.putIfAbsent(key, created);
+            if ( pool == null ) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Parses one "hostnames" entry. IPv6 addresses are written in brackets,
+     * as in URLs, when followed by a port: [::1]:8080.
+     * @param entry a [scheme://]host[:port] entry
+     * @param scheme the scheme to use if the entry has none
+     * @return the host
+     * @throws IllegalArgumentException if the host or port is invalid
+     */
+    private static HttpHost parseHost(String entry, String scheme) {
+        String hostScheme = scheme;
+        String address = entry;
+        int separator = address.indexOf("://");
+        if ( separator >= 0 ) {
+            hostScheme = address.substring(0, separator).toLowerCase();
+            address = address.substring(separator + 3);
+        }
+
+        String hostname = address;
+        String port = null;
+        if ( address.startsWith("[") ) {
+            int close = address.indexOf(']');
+            if ( close < 0 || (close + 1 < address.length() && address.charAt(close + 1) != ':') ) {
+                throw new IllegalArgumentException("Invalid host '" + entry + "' in hostnames");
+            }
+            hostname = address.substring(0, close + 1);
+            if ( close + 1 < address.length() ) {
+                port = address.substring(close + 2);
+            }
+        }
+        else if ( address.indexOf(':') != address.lastIndexOf(':') ) {
+            // A bare IPv6 address, which cannot carry a port
+            hostname = "[" + address + "]";
+        }
+        else if ( address.indexOf(':') >= 0 ) {
+            hostname = address.substring(0, address.indexOf(':'));
+            port = address.substring(address.indexOf(':') + 1);
+        }
+        if ( hostname.isEmpty() || "[]".equals(hostname) ) {
+            throw new IllegalArgumentException("Invalid host '" + entry + "' in hostnames");
+        }
+
+        int hostport = "https".equals(hostScheme) ? 443 : 80;
+        if ( port != null ) {
+            try {
+                hostport = Integer.parseInt(port);
+            }
+            catch (NumberFormatException ex) {
+                hostport = -1;
+            }
+            if ( hostport <= 0 || hostport > 65535 ) {
+                throw new IllegalArgumentException("Invalid port in host '" + entry + "' in hostnames");
+            }
+        }
+        return new HttpHost(hostname, hostport, hostScheme);
+    }
+
+    /**
+     * @return the first configured host
+     */
+    HttpHost primary() {
+        return endpoints.get(0).host;
+    }
+
+    /**
+     * Picks the endpoint the next request should go to and counts the
+     * request as in flight until done() is called
+     * @return the chosen endpoint
+     */
+    Endpoint select() {
+        if ( endpoints.size() == 1 ) {
+            Endpoint only = endpoints.get(0);
+            only.start();
+            return only;
+        }
+
+        long now = System.nanoTime();
+        double seed = seedNanos();
+        Endpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        Endpoint soonest = null;
+        for ( Endpoint endpoint : endpoints ) {
+            if ( endpoint.isEjected() || !endpoint.allowsRequests() ) {
+                if ( soonest == null || endpoint.ejectedAt < soonest.ejectedAt ) {
+                    soonest = endpoint;
+                }
+                continue;
+            }
+            double cost = endpoint.cost(now, seed);
+            if ( cost < bestCost ) {
+                bestCost = cost;
+                best = endpoint;
+            }
+        }
+        // With everything ejected or open, fall back to the one ejected longest ago
+        Endpoint chosen = best != null ? best : soonest;
+        chosen.start();
+        return chosen;
+    }
+
+    /**
+     * @return the latency assumed for endpoints without samples of their
+     *         own: the median of the others, or a fixed guess if none has any
+     */
+    private double seedNanos() {
+        double[] sampled = new double[endpoints.size()];
+        int count = 0;
+        for ( Endpoint endpoint : endpoints ) {
+            double latency = endpoint.sampledNanos();
+            if ( latency >= 0 ) {
+                sampled[count++] = latency;
+            }
+        }
+        if ( count == 0 ) {
+            return DEFAULT_SEED_NANOS;
+        }
+        Arrays.sort(sampled, 0, count);
+        return sampled[count / 2];
+    }
+
+    /**
+     * Records the outcome of a request sent to an endpoint
+     * @param endpoint the endpoint from select()
+     * @param success whether it answered without a server error
+     * @param latencyNanos how long it took
+     */
+    void done(Endpoint endpoint, boolean success, long latencyNanos) {
+        // A lone endpoint is never ejected, there is nowhere else to go
+        int limit = endpoints.size() > 1 ? maxFailures : Integer.MAX_VALUE;
+        if ( endpoint.finish(success, latencyNanos, limit) ) {
+            Logger.getLogger(EndpointPool.class.getName()).log(Level.WARNING,
+                    "Ejecting endpoint " + endpoint.host + " after " + maxFailures +
+                    " consecutive failures");
+            startProbing();
+        }
+    }
+
+    /**
+     * Stops counting a request as in flight without recording an outcome,
+     * for requests that were never sent or were cancelled on purpose
+     * @param endpoint the endpoint from select()
+     */
+    void cancel(Endpoint endpoint) {
+        endpoint.cancel();
+    }
+
+    /**
+     * @return the endpoints in this pool
+     */
+    public List<Endpoint> endpoints() {
+        return endpoints;
+    }
+
+    private synchronized void startProbing() {
+        if ( probing ) {
+            return;
+        }
+        probing = true;
+        // The timer only starts the probe; its HEAD requests block, so they
+        // run on their own pool rather than holding up every other timer
+        Workers.scheduler().schedule(new Runnable() {
+            public void run() {
+                Workers.probeExecutor().execute(new Runnable() {
+                    public void run() {
+                        probe();
+                    }
+                });
+            }
+        }, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a HEAD request to every ejected endpoint, readmitting the ones
+     * that answer, and reschedules itself while any remain ejected
+     */
+    private void probe() {
+        boolean stillEjected = false;
+        for ( Endpoint endpoint : endpoints ) {
+            if ( !endpoint.isEjected() ) {
+                continue;
+            }
+            HttpHead head = new HttpHead("/");
+            HttpConnectionParams.setConnectionTimeout(head.getParams(), (int) probeInterval);
+            HttpConnectionParams.setSoTimeout(head.getParams(), (int) probeInterval);
+            try {
+                HttpResponse response = ConnectionPool.transport(properties).execute(
+                        endpoint.host, head, new BasicHttpContext());
+                if ( response.getEntity() != null ) {
+                    response.getEntity().consumeContent();
+                }
+                if ( response.getStatusLine().getStatusCode() < 500 ) {
+                    endpoint.readmit();
+                    Logger.getLogger(EndpointPool.class.getName()).log(Level.INFO,
+                            "Endpoint " + endpoint.host + " passed its health probe, readmitting");
+                    continue;
+                }
+            }
+            catch (Exception ex) {
+                head.abort();
+            }
+            stillEjected = true;
+        }
+
+        synchronized ( this ) {
+            probing = false;
+        }
+        if ( stillEjected ) {
+            startProbing();
+        }
+    }
+
+    /**
+     * One host in the pool along with its recent latency and health
+     */
+    public static class Endpoint {
+        private final HttpHost       host;
+        private final CircuitBreaker breaker;
+        private double ewmaNanos;
+        private boolean sampled;
+        private long   lastSample = System.nanoTime();
+        private int    inFlight;
+        private int    consecutiveFailures;
+        private long   ejectedAt;
+        private boolean ejected;
+
+        Endpoint(HttpHost host, CircuitBreaker breaker) {
+            this.host = host;
+            this.breaker = breaker;
+        }
+
+        /**
+         * @return the host requests to this endpoint go to
+         */
+        public HttpHost host() {
+            return host;
+        }
+
+        /**
+         * @return this endpoint's circuit breaker, or null if circuit
+         *         breaking is disabled
+         */
+        public CircuitBreaker breaker() {
+            return breaker;
+        }
+
+        boolean allowsRequests() {
+            return breaker == null || breaker.allowsRequests();
+        }
+
+        /**
+         * @return the smoothed latency in milliseconds
+         */
+        public synchronized double latencyMillis() {
+            return ewmaNanos / 1e6;
+        }
+
+        /**
+         * @return whether the endpoint is currently ejected
+         */
+        public synchronized boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * @return the smoothed latency, or -1 if there are no samples since
+         *         the endpoint was created or readmitted
+         */
+        synchronized double sampledNanos() {
+            return sampled ? ewmaNanos : -1;
+        }
+
+        /**
+         * @param seed the latency to assume without samples of our own
+         */
+        synchronized double cost(long now, double seed) {
+            if ( !sampled ) {
+                return seed * (inFlight + 1);
+            }
+            // Decay towards the seed while idle so a once-slow endpoint gets tried again
+            double weight = Math.exp(-(double) (now - lastSample) / DECAY_NANOS);
+            return (seed + (ewmaNanos - seed) * weight) * (inFlight + 1);
+        }
+
+        synchronized void start() {
+            inFlight++;
+        }
+
+        synchronized void cancel() {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+
+        /**
+         * @return true if this failure ejected the endpoint
+         */
+        synchronized boolean finish(boolean success, long latencyNanos, int maxFailures) {
+            inFlight = Math.max(0, inFlight - 1);
+            long now = System.nanoTime();
+            // A fast failure must not make the endpoint look attractive
+            long sample = success ? latencyNanos : Math.max(latencyNanos, FAILURE_PENALTY_NANOS);
+            if ( !sampled || sample > ewmaNanos ) {
+                // Peak-sensitive: jump straight up to a slower sample
+                ewmaNanos = sample;
+            }
+            else {
+                double weight = Math.exp(-(double) (now - lastSample) / DECAY_NANOS);
+                ewmaNanos = ewmaNanos * weight + sample * (1 - weight);
+            }
+            lastSample = now;
+            sampled = true;
+
+            if ( success ) {
+                consecutiveFailures = 0;
+                return false;
+            }
+            if ( ++consecutiveFailures >= maxFailures && !ejected ) {
+                ejected = true;
+                ejectedAt = now;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void readmit() {
+            ejected = false;
+            consecutiveFailures = 0;
+            // Forget the latency that got it ejected; it is seeded like a new one
+            ewmaNanos = 0;
+            sampled = false;
+        }
+
+        @Override
+        public String toString() {
+            return host + " (" + Math.round(latencyMillis()) + "ms" +
+                    (isEjected() ? ", ejected)" : ")");
+        }
+    }
+}
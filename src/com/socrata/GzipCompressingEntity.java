@@ -0,0 +1,72 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Wraps a request entity so that it is gzipped on the fly as it is
+ * written to the connection. The compressed length is not known up front,
+ * so the body is sent chunked.
+ */
+class GzipCompressingEntity extends HttpEntityWrapper {
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * @param entity the uncompressed entity to wrap
+     */
+    GzipCompressingEntity(HttpEntity entity) {
+        super(entity);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", "gzip");
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        throw new UnsupportedOperationException("Compressed request bodies can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(outstream, BUFFER_SIZE);
+        wrappedEntity.writeTo(gzip);
+        // Flushes the trailer without closing the connection's stream
+        gzip.finish();
+    }
+}
@@ -0,0 +1,144 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when an idempotent GET has been outstanding long enough to be
+ * worth sending a second copy of.
+ *
+ * Recent latencies are kept per endpoint; the hedge delay is the chosen
+ * percentile of them. Hedges are only sent while they make up less than
+ * the configured share of all requests, so a slow host cannot make us
+ * double our load on it.
+ */
+class Hedger {
+    private static final int SAMPLES = 128;
+
+    private static final ConcurrentMap<String, Hedger> HEDGERS =
+            new ConcurrentHashMap<String, Hedger>();
+
+    private final int percentile;
+    private final int maxHedgePercent;
+    private final int minSamples;
+
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges   = new AtomicLong();
+
+    private Hedger(ResourceBundle properties) {
+        this.percentile = ApiBase.intSetting(properties, "hedge_percentile", 95);
+        this.maxHedgePercent = ApiBase.intSetting(properties, "hedge_max_percent", 10);
+        this.minSamples = ApiBase.intSetting(properties, "hedge_min_samples", 20);
+    }
+
+    /**
+     * Returns the hedger shared by every object talking to a host
+     * @param host the host requests are sent to
+     * @param properties settings used only when creating the hedger
+     * @return the shared hedger, or null if hedging is disabled
+     */
+    static Hedger forHost(String host, ResourceBundle properties) {
+        if ( !Boolean.valueOf(ApiBase.setting(properties, "hedge_requests", "false")) ) {
+            return null;
+        }
+        Hedger hedger = HEDGERS.get(host);
+        if ( hedger == null ) {
+            Hedger created = new Hedger(properties);
+            hedger = HEDGERS.putIfAbsent(host, created);
+            if ( hedger == null ) {
+                hedger = created;
+            }
+        }
+        return hedger;
+    }
+
+    /**
+     * @param endpoint the logical endpoint, e.g. "columns"
+     * @return milliseconds to wait before hedging, or -1 if there are not
+     *         yet enough samples to pick a delay
+     */
+    long delay(String endpoint) {
+        requests.incrementAndGet();
+        Window window = windows.get(endpoint);
+        return window == null ? -1 : window.percentile(percentile, minSamples);
+    }
+
+    /**
+     * Claims permission to send one hedge, if the budget allows
+     * @return whether a hedge may be sent
+     */
+    boolean tryHedge() {
+        while ( true ) {
+            long sent = hedges.get();
+            if ( (sent + 1) * 100 > maxHedgePercent * requests.get() ) {
+                return false;
+            }
+            if ( hedges.compareAndSet(sent, sent + 1) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records how long a successful request to an endpoint took
+     * @param endpoint the logical endpoint
+     * @param millis the latency
+     */
+    void record(String endpoint, long millis) {
+        Window window = windows.get(endpoint);
+        if ( window == null ) {
+            Window created = new Window();
+            window = windows.putIfAbsent(endpoint, created);
+            if ( window == null ) {
+                window = created;
+            }
+        }
+        window.add(millis);
+    }
+
+    /**
+     * The most recent latencies for one endpoint
+     */
+    private static class Window {
+        private final long[] samples = new long[SAMPLES];
+        private int next, count;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % SAMPLES;
+            count = Math.min(count + 1, SAMPLES);
+        }
+
+        synchronized long percentile(int p, int minSamples) {
+            if ( count < Math.max(1, minSamples) ) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLContext;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.CircularRedirectException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.RedirectException;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Transport built on java.net.http.HttpClient (Java 11 and later). It
+ * negotiates HTTP/2 where the server supports it, so concurrent requests
+ * to a host are multiplexed over a single connection instead of each
+ * holding a pooled HTTP/1.1 connection.
+ *
+ * Like the Apache client it asks for gzip/deflate responses and decodes
+ * them, follows the same redirects, and it sends Basic credentials from
+ * the context's credentials provider preemptively. Select it with
+ * "transport: jdk".
+ */
+class JdkTransport implements Transport {
+    private static final int BUFFER_LIMIT = 64 * 1024;
+
+    // Headers java.net.http sets itself and refuses to take from callers
+    private static final Set<String> RESTRICTED = new HashSet<String>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade"));
+
+    private static final int MAX_REDIRECTS = 100;
+
+    // Streamed uploads beyond this many at once wait for a writer thread
+    private static final ExecutorService BODY_WRITERS = Executors.newFixedThreadPool(8,
+            Workers.daemonThreadFactory("socrata-body-writer"));
+
+    private final HttpClient client;
+
+    JdkTransport(int connectTimeout, SSLContext sslContext) {
+        // Over TLS, HTTP/2 is agreed through ALPN during the handshake
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .sslContext(sslContext)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if ( connectTimeout > 0 ) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        this.client = builder.build();
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequestBase request, HttpContext context)
+            throws IOException {
+        URI uri = uri(target, request);
+        String method = request.getMethod();
+        HttpEntity entity = null;
+        if ( request instanceof HttpEntityEnclosingRequest ) {
+            entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        }
+
+        Set<URI> visited = new HashSet<URI>();
+        visited.add(uri);
+        for ( int redirects = 0; ; redirects++ ) {
+            HttpRequest.Builder builder = prepare(uri, target, request, context);
+            if ( entity != null ) {
+                if ( entity.getContentType() != null && !request.containsHeader("Content-Type") ) {
+                    builder.header("Content-Type", entity.getContentType().getValue());
+                }
+                if ( entity.getContentEncoding() != null ) {
+                    builder.header("Content-Encoding", entity.getContentEncoding().getValue());
+                }
+            }
+            builder.method(method, body(entity));
+
+            Call call = new Call(client.sendAsync(builder.build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofInputStream()));
+            request.setReleaseTrigger(call);
+            java.net.http.HttpResponse<InputStream> response = call.await();
+
+            URI location = redirect(method, response);
+            if ( location == null ) {
+                return toResponse(request, response);
+            }
+            response.body().close();
+            location = uri.resolve(location);
+            if ( redirects >= MAX_REDIRECTS ) {
+                throw new ClientProtocolException(new RedirectException(
+                        "Maximum redirects (" + MAX_REDIRECTS + ") exceeded"));
+            }
+            if ( !visited.add(location) ) {
+                throw new ClientProtocolException(new CircularRedirectException(
+                        "Circular redirect to '" + location + "'"));
+            }
+            // Like DefaultRedirectHandler, the redirect is always a GET
+            uri = location;
+            method = "GET";
+            entity = null;
+        }
+    }
+
+    /**
+     * Starts a request to the uri carrying the original request's headers
+     * and timeouts. java.net.http only has a client-wide connect timeout,
+     * so the request's own connect and socket timeouts together bound the
+     * wait for the response headers, as they would with the Apache client.
+     */
+    private static HttpRequest.Builder prepare(URI uri, HttpHost target,
+            HttpRequestBase request, HttpContext context) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        int connect = HttpConnectionParams.getConnectionTimeout(request.getParams());
+        int socket = HttpConnectionParams.getSoTimeout(request.getParams());
+        if ( socket > 0 ) {
+            builder.timeout(Duration.ofMillis((long) socket + Math.max(0, connect)));
+        }
+
+        for ( Header header : request.getAllHeaders() ) {
+            if ( !RESTRICTED.contains(header.getName().toLowerCase()) ) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        if ( !request.containsHeader("Accept-Encoding") ) {
+            builder.header("Accept-Encoding", "gzip,deflate");
+        }
+        // Credentials are scoped to the target, so they do not follow a redirect elsewhere
+        if ( !request.containsHeader("Authorization") &&
+                target.getHostName().equalsIgnoreCase(uri.getHost()) ) {
+            String authorization = authorization(target, context);
+            if ( authorization != null ) {
+                builder.header("Authorization", authorization);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Follows the Apache client's DefaultRedirectHandler: 301, 302 and 307
+     * are followed for GET and HEAD only, 303 for any method
+     * @return where to go next, or null if the response is final
+     */
+    private static URI redirect(String method, java.net.http.HttpResponse<InputStream> response) {
+        int status = response.statusCode();
+        boolean follow;
+        switch ( status ) {
+            case 301:
+            case 302:
+            case 307:
+                follow = "GET".equals(method) || "HEAD".equals(method);
+                break;
+            case 303:
+                follow = true;
+                break;
+            default:
+                follow = false;
+        }
+        if ( !follow ) {
+            return null;
+        }
+        String location = response.headers().firstValue("Location").orElse(null);
+        if ( location == null ) {
+            return null;
+        }
+        try {
+            return new URI(location);
+        }
+        catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    public int open(HttpHost target, int connections, int timeout) {
+        // One connection carries every request under HTTP/2
+        HttpHead head = new HttpHead("/");
+        HttpConnectionParams.setSoTimeout(head.getParams(), timeout);
+        try {
+            HttpResponse response = execute(target, head, new BasicHttpContext());
+            response.getEntity().consumeContent();
+            return 1;
+        }
+        catch (IOException ex) {
+            Logger.getLogger(JdkTransport.class.getName()).log(Level.WARNING,
+                    "Could not connect to " + target, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the request's path and query, resolved against the target
+     */
+    private static URI uri(HttpHost target, HttpRequestBase request) {
+        URI uri = request.getURI();
+        StringBuilder url = new StringBuilder(target.toURI());
+        String path = uri.getRawPath();
+        url.append(path == null || path.length() == 0 ? "/" : path);
+        if ( uri.getRawQuery() != null ) {
+            url.append('?').append(uri.getRawQuery());
+        }
+        return URI.create(url.toString());
+    }
+
+    /**
+     * @return a Basic Authorization header value for the target, or null if
+     *         the context holds no credentials for it
+     */
+    private static String authorization(HttpHost target, HttpContext context) {
+        CredentialsProvider provider = context == null ? null :
+                (CredentialsProvider) context.getAttribute(ClientContext.CREDS_PROVIDER);
+        if ( provider == null ) {
+            return null;
+        }
+        Credentials credentials = provider.getCredentials(
+                new AuthScope(target.getHostName(), target.getPort()));
+        if ( credentials == null || credentials.getUserPrincipal() == null ||
+                credentials.getUserPrincipal().getName().length() == 0 ) {
+            return null;
+        }
+        String pair = credentials.getUserPrincipal().getName() + ":" +
+                (credentials.getPassword() == null ? "" : credentials.getPassword());
+        try {
+            return "Basic " + new String(Base64.encodeBase64(pair.getBytes("UTF-8")), "US-ASCII");
+        }
+        catch (java.io.UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Small bodies are copied into memory; anything bigger, such as a file
+     * upload, is streamed through a pipe as the entity writes it out
+     */
+    private static HttpRequest.BodyPublisher body(final HttpEntity entity) throws IOException {
+        if ( entity == null ) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        long length = entity.getContentLength();
+        if ( length >= 0 && length <= BUFFER_LIMIT ) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+            entity.writeTo(buffer);
+            return HttpRequest.BodyPublishers.ofByteArray(buffer.toByteArray());
+        }
+
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(
+                new Supplier<InputStream>() {
+            public InputStream get() {
+                final PipedInputStream in = new PipedInputStream(BUFFER_LIMIT);
+                final PipedOutputStream out;
+                try {
+                    out = new PipedOutputStream(in);
+                }
+                catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                BODY_WRITERS.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            entity.writeTo(out);
+                            out.close();
+                        }
+                        catch (IOException ex) {
+                            // Closing the read end fails the upload rather
+                            // than sending a truncated body
+                            Logger.getLogger(JdkTransport.class.getName()).log(Level.WARNING,
+                                    "Could not write request body", ex);
+                            try {
+                                in.close();
+                            }
+                            catch (IOException ignored) {
+                                // Ignore
+                            }
+                        }
+                    }
+                });
+                return in;
+            }
+        });
+        return length >= 0 ? HttpRequest.BodyPublishers.fromPublisher(stream, length) : stream;
+    }
+
+    private static HttpResponse toResponse(HttpRequestBase request,
+            java.net.http.HttpResponse<InputStream> response) throws IOException {
+        int status = response.statusCode();
+        ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2 ?
+                new ProtocolVersion("HTTP", 2, 0) : new ProtocolVersion("HTTP", 1, 1);
+        BasicHttpResponse result = new BasicHttpResponse(version, status,
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null));
+
+        String encoding = null;
+        long length = -1;
+        String type = null;
+        for ( Map.Entry<String, List<String>> header : response.headers().map().entrySet() ) {
+            String name = header.getKey();
+            if ( name.startsWith(":") ) {
+                continue;
+            }
+            for ( String value : header.getValue() ) {
+                result.addHeader(name, value);
+            }
+            String first = header.getValue().isEmpty() ? null : header.getValue().get(0);
+            if ( "content-encoding".equalsIgnoreCase(name) ) {
+                encoding = first;
+            }
+            else if ( "content-length".equalsIgnoreCase(name) && first != null ) {
+                try {
+                    length = Long.parseLong(first.trim());
+                }
+                catch (NumberFormatException ex) {
+                    // Leave the length unknown
+                }
+            }
+            else if ( "content-type".equalsIgnoreCase(name) ) {
+                type = first;
+            }
+        }
+
+        InputStream content = response.body();
+        boolean hasBody = !"HEAD".equals(request.getMethod()) && status != 204 && status != 304;
+        if ( hasBody && encoding != null ) {
+            // Decode the way ResponseContentEncoding does for the Apache client
+            if ( "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding) ) {
+                content = new GZIPInputStream(content);
+                encoding = null;
+            }
+            else if ( "deflate".equalsIgnoreCase(encoding) ) {
+                content = new InflaterInputStream(content);
+                encoding = null;
+            }
+            if ( encoding == null ) {
+                length = -1;
+                result.removeHeaders("Content-Encoding");
+                result.removeHeaders("Content-Length");
+            }
+        }
+
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentLength(length);
+        entity.setContentType(type);
+        entity.setContentEncoding(encoding);
+        result.setEntity(entity);
+        return result;
+    }
+
+    /**
+     * An in-flight exchange, which HttpRequestBase.abort() cancels
+     */
+    private static class Call implements ConnectionReleaseTrigger {
+        private final CompletableFuture<java.net.http.HttpResponse<InputStream>> future;
+
+        Call(CompletableFuture<java.net.http.HttpResponse<InputStream>> future) {
+            this.future = future;
+        }
+
+        java.net.http.HttpResponse<InputStream> await() throws IOException {
+            try {
+                return future.get();
+            }
+            catch (InterruptedException ex) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response");
+            }
+            catch (CancellationException ex) {
+                throw new InterruptedIOException("Request aborted");
+            }
+            catch (ExecutionException ex) {
+                if ( ex.getCause() instanceof IOException ) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        public void releaseConnection() {
+            // Nothing to do, java.net.http manages its own connections
+        }
+
+        public void abortConnection() throws IOException {
+            if ( !future.cancel(true) ) {
+                // Headers already arrived, so stop reading the body
+                try {
+                    future.getNow(null).body().close();
+                }
+                catch (Exception ex) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package com.socrata;
 
 import java.io.BufferedReader;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -22,6 +25,17 @@ public class JsonPayload {
     private JSONObject  jsonObject;
     private JSONArray   jsonArray;
     private String      stringResponse;
+    private IOException readError;
+    private long        size;
+
+    /**
+     * Class constructor from an already-decoded body, e.g. one read back
+     * from the disk cache
+     * @param reader  the JSON text
+     */
+    JsonPayload(Reader reader) {
+        extractJson(reader);
+    }
 
     /**
      * Class constructor from apache commons response object
@@ -36,6 +50,7 @@ public class JsonPayload {
         }
         catch (IOException ex) {
             Logger.getLogger(JsonPayload.class.getName()).log(Level.SEVERE, null, ex);
+            readError = ex;
             return;
         }
         catch (IllegalStateException ex) {
@@ -43,7 +58,15 @@ public class JsonPayload {
             return;
         }
 
-        InputStreamReader responseReader = new InputStreamReader(stream);
+        // Gzip/deflate bodies were already wrapped in a decompressing entity
+        // by the client, so this reads straight through the inflater
+        InputStreamReader responseReader;
+        try {
+            responseReader = new InputStreamReader(stream, charset(entity));
+        }
+        catch (UnsupportedEncodingException ex) {
+            responseReader = new InputStreamReader(stream);
+        }
         extractJson(responseReader);
         if ( stream != null ) {
             try {
@@ -62,18 +85,25 @@ public class JsonPayload {
         }
     }
 
+    /**
+     * Parses the body as it streams in, so large responses never have to be
+     * held in memory as one big string
+     * @param reader the decoded response body
+     */
     private void extractJson(Reader reader) {
-        String jsonString = readerToString(reader);
-        JSONTokener tokener = new JSONTokener(jsonString);
-        
-        if ( jsonString.length() > 0 && jsonString.charAt(0) == '[') {
+        TrackingReader tracked = new TrackingReader(reader);
+        BufferedReader br = new BufferedReader(tracked);
+        int first = peekFirstCharacter(br);
+        JSONTokener tokener = new JSONTokener(br);
+
+        if ( first == '[' ) {
             try {
                 jsonArray = new JSONArray(tokener);
             }
             catch (Exception exor) {
                 // Ignore...
             }
-        } else if ( jsonString.length() > 0 && jsonString.charAt(0) == '{' ) {
+        } else if ( first == '{' ) {
             // First try to cast it to a Json Object, i.e. {...}
             try {
                 jsonObject = new JSONObject(tokener);
@@ -82,12 +112,59 @@ public class JsonPayload {
                 // Ignore...
             }
         } else {
-            stringResponse = jsonString;
+            stringResponse = readerToString(br).trim();
             if ( stringResponse.length() > 0 ) {
                 Logger.getLogger(JsonPayload.class.getName()).log(Level.WARNING,
                          "Failed to convert JSON to object or array");
             }
         }
+
+        size = tracked.chars;
+        if ( tracked.error != null ) {
+            // Cut short, e.g. by an abort: whatever was parsed is not the response
+            readError = tracked.error;
+            jsonObject = null;
+            jsonArray = null;
+            stringResponse = null;
+        }
+    }
+
+    /**
+     * Skips leading whitespace and returns the next character without
+     * consuming it
+     * @param reader a reader supporting mark/reset
+     * @return the first non-whitespace character, or -1 at end of stream
+     */
+    private int peekFirstCharacter(BufferedReader reader) {
+        try {
+            while ( true ) {
+                reader.mark(1);
+                int c = reader.read();
+                if ( c == -1 || !Character.isWhitespace(c) ) {
+                    reader.reset();
+                    return c;
+                }
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(JsonPayload.class.getName()).log(Level.WARNING,
+                    "Failed to read response body", ex);
+            return -1;
+        }
+    }
+
+    /**
+     * @param entity the response entity
+     * @return the declared charset, or UTF-8 (the JSON default) if none
+     */
+    private static String charset(HttpEntity entity) {
+        try {
+            String charset = EntityUtils.getContentCharSet(entity);
+            return charset == null ? "UTF-8" : charset;
+        }
+        catch (Exception ex) {
+            return "UTF-8";
+        }
     }
 
     private String readerToString(Reader r) {
@@ -132,6 +209,34 @@ public class JsonPayload {
         return this.stringResponse;
     }
 
+    /**
+     * @return how many characters of body were read
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the error that cut the body short, or null if it was read in full
+     */
+    IOException readError() {
+        return readError;
+    }
+
+    /**
+     * @return the JSON text of the object or array, or null if the response
+     *         was not JSON
+     */
+    String toJson() {
+        if ( jsonObject != null ) {
+            return jsonObject.toString();
+        }
+        if ( jsonArray != null ) {
+            return jsonArray.toString();
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         StringBuffer us = new StringBuffer();
@@ -155,4 +260,47 @@ public class JsonPayload {
         
         return us.toString();
     }
+
+    /**
+     * Counts what is read and remembers the first read error, which the
+     * parsers swallow
+     */
+    private static class TrackingReader extends FilterReader {
+        IOException error;
+        long        chars;
+
+        TrackingReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int c = super.read();
+                if ( c != -1 ) {
+                    chars++;
+                }
+                return c;
+            }
+            catch (IOException ex) {
+                error = ex;
+                throw ex;
+            }
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            try {
+                int read = super.read(buffer, offset, length);
+                if ( read > 0 ) {
+                    chars += read;
+                }
+                return read;
+            }
+            catch (IOException ex) {
+                error = ex;
+                throw ex;
+            }
+        }
+    }
 }
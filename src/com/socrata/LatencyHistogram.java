@@ -0,0 +1,129 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, in the style of
+ * HdrHistogram: each power of two is split into 16 linear buckets, so any
+ * recorded value is reported to within about 6% while the whole histogram
+ * is a fixed array of a few hundred counters.
+ */
+class LatencyHistogram {
+    private static final int  SUB_BITS     = 4;
+    private static final int  SUB_BUCKETS  = 1 << SUB_BITS;
+    private static final int  MAX_EXPONENT = 40;
+    private static final long MAX_VALUE    = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+    private final AtomicLong      total  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /**
+     * @param micros a latency; negative values count as 0, and anything
+     *        above about 25 days is clamped
+     */
+    void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while ( value > current && !max.compareAndSet(current, value) ) {
+            current = max.get();
+        }
+    }
+
+    void reset() {
+        for ( int i = 0; i < counts.length(); i++ ) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency in microseconds, or 0 if nothing was recorded
+     */
+    double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Computes several percentiles from one pass over the counters
+     * @param percentiles values between 0 and 100, in ascending order
+     * @return the upper bound of the bucket holding each percentile, in
+     *         microseconds
+     */
+    long[] percentiles(double... percentiles) {
+        long[] copy = new long[counts.length()];
+        long n = 0;
+        for ( int i = 0; i < copy.length; i++ ) {
+            copy[i] = counts.get(i);
+            n += copy[i];
+        }
+
+        long[] result = new long[percentiles.length];
+        if ( n == 0 ) {
+            return result;
+        }
+        int bucket = 0;
+        long seen = copy[0];
+        for ( int p = 0; p < percentiles.length; p++ ) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * n));
+            while ( seen < rank && bucket < copy.length - 1 ) {
+                seen += copy[++bucket];
+            }
+            result[p] = Math.min(upperBound(bucket), max.get());
+        }
+        return result;
+    }
+
+    private static int index(long value) {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,256 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client-side pacing of requests sent with one app token to one host.
+ *
+ * Every Socrata object using the same token and host shares a limiter, so
+ * the configured rates hold across all threads and instances. Each limit
+ * is a token bucket holding up to one second of traffic, implemented as a
+ * compare-and-set on the time the bucket next has room; callers never
+ * take a lock, they only sleep for their reserved slot.
+ */
+public class RateLimiter {
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS =
+            new ConcurrentHashMap<String, RateLimiter>();
+
+    private final String key;
+    private final Bucket requests;
+    private final Bucket bytes;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong delayed      = new AtomicLong();
+    private final AtomicLong totalWait    = new AtomicLong();
+    private final AtomicLong maxWait      = new AtomicLong();
+    private final AtomicLong refused      = new AtomicLong();
+
+    private RateLimiter(String key, double requestsPerSecond, double bytesPerSecond) {
+        this.key = key;
+        this.requests = requestsPerSecond > 0 ? new Bucket(requestsPerSecond) : null;
+        this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * Returns the limiter shared by everything using this token and host,
+     * creating it with the given rates if it does not exist yet
+     * @param appToken the X-App-Token requests are sent with
+     * @param host the host requests are sent to
+     * @param requestsPerSecond request rate, or 0 for no limit
+     * @param bytesPerSecond request body rate, or 0 for no limit
+     * @return the shared limiter, or null if both rates are unlimited
+     */
+    static RateLimiter forKey(String appToken, String host,
+            double requestsPerSecond, double bytesPerSecond) {
+        if ( requestsPerSecond <= 0 && bytesPerSecond <= 0 ) {
+            return null;
+        }
+        String key = appToken + "@" + host;
+        RateLimiter limiter = LIMITERS.get(key);
+        if ( limiter == null ) {
+            RateLimiter created = new RateLimiter(key, requestsPerSecond, bytesPerSecond);
+            limiter = LIMITERS.putIfAbsent(key, created);
+            if ( limiter == null ) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return every limiter created so far, keyed by "token@host"
+     */
+    public static Map<String, RateLimiter> limiters() {
+        return Collections.unmodifiableMap(LIMITERS);
+    }
+
+    /**
+     * Waits until one request carrying the given number of body bytes may
+     * be sent. If that would take longer than the caller can wait, returns
+     * at once without using up any capacity.
+     * @param byteCount the size of the request body, or 0 if unknown
+     * @param maxWaitMillis the longest the caller can wait, e.g. the time
+     *        left before its deadline
+     * @return false if the wait would be longer than maxWaitMillis or the
+     *         thread was interrupted while waiting
+     */
+    boolean acquire(long byteCount, long maxWaitMillis) {
+        long now = System.nanoTime();
+        long limit = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        long wait = 0;
+        long requestWait = 0;
+        if ( requests != null ) {
+            requestWait = requests.reserve(1, now, limit);
+            if ( requestWait > limit ) {
+                refused.incrementAndGet();
+                return false;
+            }
+            wait = requestWait;
+        }
+        if ( bytes != null && byteCount > 0 ) {
+            long bytesWait = bytes.reserve(byteCount, now, limit);
+            if ( bytesWait > limit ) {
+                if ( requests != null ) {
+                    requests.release(1);
+                }
+                refused.incrementAndGet();
+                return false;
+            }
+            wait = Math.max(wait, bytesWait);
+        }
+
+        acquisitions.incrementAndGet();
+        if ( wait <= 0 ) {
+            return true;
+        }
+        delayed.incrementAndGet();
+        totalWait.addAndGet(wait);
+        long max = maxWait.get();
+        while ( wait > max && !maxWait.compareAndSet(max, wait) ) {
+            max = maxWait.get();
+        }
+
+        long deadline = now + wait;
+        long remaining = wait;
+        while ( remaining > 0 ) {
+            LockSupport.parkNanos(this, remaining);
+            if ( Thread.currentThread().isInterrupted() ) {
+                return false;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * @return the token and host this limiter applies to
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @return how many requests have passed through the limiter
+     */
+    public long acquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return how many requests had to wait for capacity
+     */
+    public long delayedAcquisitions() {
+        return delayed.get();
+    }
+
+    /**
+     * @return the total time requests spent waiting, in milliseconds
+     */
+    public long totalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWait.get());
+    }
+
+    /**
+     * @return the longest single wait, in milliseconds
+     */
+    public long maxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWait.get());
+    }
+
+    /**
+     * @return how many requests failed at once because their wait would
+     *         have passed their deadline
+     */
+    public long refusedAcquisitions() {
+        return refused.get();
+    }
+
+    /**
+     * @return the average wait of requests that had to wait, in milliseconds
+     */
+    public double averageWaitMillis() {
+        long count = delayed.get();
+        return count == 0 ? 0 : totalWait.get() / (count * 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter(" + key + ": " + acquisitions() + " requests, " +
+                delayedAcquisitions() + " delayed, " + refusedAcquisitions() + " refused, " +
+                totalWaitMillis() + "ms waited)";
+    }
+
+    /**
+     * A token bucket stored as the theoretical time at which it will next
+     * be empty. Reserving tokens pushes that time forward; anything more
+     * than a full bucket ahead of now has to be waited out.
+     */
+    private static class Bucket {
+        private final double     nanosPerToken;
+        private final long       capacityNanos;
+        private final AtomicLong emptyAt;
+
+        Bucket(double tokensPerSecond) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+            this.capacityNanos = TimeUnit.SECONDS.toNanos(1);
+            this.emptyAt = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * @param tokens how many tokens to take
+         * @param now the current nanoTime
+         * @param maxWait the longest the caller can wait, in nanoseconds
+         * @return nanoseconds the caller must wait before using its tokens;
+         *         if more than maxWait, nothing was taken
+         */
+        long reserve(long tokens, long now, long maxWait) {
+            long cost = cost(tokens);
+            while ( true ) {
+                long current = emptyAt.get();
+                // An idle bucket stays full rather than banking extra tokens
+                long start = Math.max(current, now);
+                long next = start + cost;
+                long wait = next - now - capacityNanos;
+                if ( wait > maxWait || emptyAt.compareAndSet(current, next) ) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Gives back tokens reserved by a request that will not be sent
+         * @param tokens how many tokens were taken
+         */
+        void release(long tokens) {
+            emptyAt.addAndGet(-cost(tokens));
+        }
+
+        private long cost(long tokens) {
+            return (long) Math.ceil(tokens * nanosPerToken);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Process-wide statistics on the calls made to the API, grouped by logical
+ * endpoint: views, rows, columns, batches, imports, files, users and other.
+ *
+ * A call is one performRequest, however many attempts it took. For each
+ * endpoint this keeps the number of calls, retries and failures, request
+ * and response body bytes, final status classes and a latency histogram.
+ * The totals are available from snapshot() and over JMX.
+ */
+public final class RequestMetrics implements RequestMetricsMXBean {
+    public static final String OBJECT_NAME = "com.socrata:type=RequestMetrics";
+
+    private static final Pattern VIEW_CHILD =
+            Pattern.compile("^/views/[^/]+/(rows|columns|files)(\\b.*)?$");
+    private static final String[] STATUS_CLASSES =
+            { "failed", "1xx", "2xx", "3xx", "4xx", "5xx", "aborted" };
+    private static final int      ABORTED = STATUS_CLASSES.length - 1;
+
+    private static RequestMetrics shared;
+
+    private final ConcurrentMap<String, Endpoint> endpoints =
+            new ConcurrentHashMap<String, Endpoint>();
+
+    private RequestMetrics() {
+    }
+
+    /**
+     * Returns the process-wide metrics, registering them with the platform
+     * MBean server the first time
+     * @return the shared metrics
+     */
+    public static synchronized RequestMetrics shared() {
+        if ( shared == null ) {
+            shared = new RequestMetrics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        shared, new ObjectName(OBJECT_NAME));
+            }
+            catch (Exception ex) {
+                Logger.getLogger(RequestMetrics.class.getName()).log(Level.WARNING,
+                        "Could not register " + OBJECT_NAME + " with JMX", ex);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return the current totals for every endpoint that has been called,
+     *         keyed and sorted by endpoint name
+     */
+    public Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+        for ( Map.Entry<String, Endpoint> entry : endpoints.entrySet() ) {
+            result.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    public Map<String, Snapshot> getEndpoints() {
+        return snapshot();
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for ( Endpoint endpoint : endpoints.values() ) {
+            total += endpoint.latency.count();
+        }
+        return total;
+    }
+
+    public long getFailureCount() {
+        long total = 0;
+        for ( Endpoint endpoint : endpoints.values() ) {
+            total += endpoint.statuses.get(0);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for ( Endpoint endpoint : endpoints.values() ) {
+            endpoint.reset();
+        }
+    }
+
+    /**
+     * Starts timing a call
+     * @param path the request path, used to pick the endpoint
+     * @return a handle to record the call's progress on
+     */
+    Call begin(String path) {
+        String name = endpointOf(path);
+        Endpoint endpoint = endpoints.get(name);
+        if ( endpoint == null ) {
+            Endpoint created = new Endpoint();
+            endpoint = endpoints.putIfAbsent(name, created);
+            if ( endpoint == null ) {
+                endpoint = created;
+            }
+        }
+        return new Call(endpoint);
+    }
+
+    /**
+     * @param path a request path such as /views/abcd-1234/rows.json
+     * @return the logical endpoint it belongs to
+     */
+    static String endpointOf(String path) {
+        if ( path == null ) {
+            return "other";
+        }
+        Matcher child = VIEW_CHILD.matcher(path);
+        if ( child.matches() ) {
+            return child.group(1);
+        }
+        String[] roots = { "views", "batches", "imports", "users" };
+        for ( String root : roots ) {
+            if ( path.equals("/" + root) || path.startsWith("/" + root + "/") ||
+                    path.startsWith("/" + root + ".") ) {
+                return root;
+            }
+        }
+        return "other";
+    }
+
+    /**
+     * Counters for one logical endpoint
+     */
+    private static class Endpoint {
+        private final LatencyHistogram latency       = new LatencyHistogram();
+        private final AtomicLong       retries       = new AtomicLong();
+        private final AtomicLong       requestBytes  = new AtomicLong();
+        private final AtomicLong       responseBytes = new AtomicLong();
+        private final AtomicLongArray  statuses      = new AtomicLongArray(STATUS_CLASSES.length);
+
+        void reset() {
+            latency.reset();
+            retries.set(0);
+            requestBytes.set(0);
+            responseBytes.set(0);
+            for ( int i = 0; i < statuses.length(); i++ ) {
+                statuses.set(i, 0);
+            }
+        }
+
+        Snapshot snapshot(String name) {
+            Map<String, Long> counts = new LinkedHashMap<String, Long>();
+            for ( int i = 0; i < STATUS_CLASSES.length; i++ ) {
+                counts.put(STATUS_CLASSES[i], statuses.get(i));
+            }
+            long[] p = latency.percentiles(50, 90, 99, 99.9);
+            return new Snapshot(name, latency.count(), retries.get(), requestBytes.get(),
+                    responseBytes.get(), counts, latency.mean() / 1000.0, p[0] / 1000.0,
+                    p[1] / 1000.0, p[2] / 1000.0, p[3] / 1000.0, latency.max() / 1000.0);
+        }
+    }
+
+    /**
+     * One call in progress. Not thread-safe; each call belongs to the thread
+     * performing it.
+     */
+    static class Call {
+        private final Endpoint endpoint;
+        private final long     started = System.nanoTime();
+        private int            status;
+        private int            retries;
+        private long           requestBytes;
+        private CountingStream body;
+        private boolean        skipped;
+
+        private Call(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * @param bytes the size of the request body, if known
+         */
+        void requestBytes(long bytes) {
+            requestBytes = Math.max(bytes, 0);
+        }
+
+        /**
+         * Notes an attempt's response and counts the body bytes read from it
+         * @param response the response to the latest attempt
+         */
+        void response(HttpResponse response) {
+            status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if ( entity != null ) {
+                body = new CountingStream(body);
+                response.setEntity(new CountingEntity(entity, body));
+            }
+        }
+
+        /**
+         * Notes an attempt that got no response at all
+         */
+        void failed() {
+            status = 0;
+        }
+
+        /**
+         * Notes an attempt cancelled on purpose, by its deadline or because
+         * it was a hedge that lost the race
+         */
+        void aborted() {
+            status = -1;
+        }
+
+        void retry() {
+            retries++;
+        }
+
+        /**
+         * Leaves the call out of the metrics, e.g. when it was answered from
+         * the disk cache without a request
+         */
+        void skip() {
+            skipped = true;
+        }
+
+        void end() {
+            if ( skipped ) {
+                return;
+            }
+            endpoint.latency.record((System.nanoTime() - started) / 1000);
+            endpoint.statuses.incrementAndGet(status < 0 ? ABORTED : Math.min(status / 100, 5));
+            if ( retries > 0 ) {
+                endpoint.retries.addAndGet(retries);
+            }
+            endpoint.requestBytes.addAndGet(requestBytes * (retries + 1));
+            if ( body != null ) {
+                endpoint.responseBytes.addAndGet(body.total());
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, carrying on from earlier attempts
+     */
+    private static class CountingStream extends FilterInputStream {
+        private final long earlier;
+        private long       count;
+
+        CountingStream(CountingStream previous) {
+            super(null);
+            this.earlier = previous == null ? 0 : previous.total();
+        }
+
+        InputStream wrap(InputStream content) {
+            this.in = content;
+            return this;
+        }
+
+        long total() {
+            return earlier + count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if ( b >= 0 ) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if ( n > 0 ) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class CountingEntity extends HttpEntityWrapper {
+        private final CountingStream counter;
+
+        CountingEntity(HttpEntity entity, CountingStream counter) {
+            super(entity);
+            this.counter = counter;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return counter.wrap(wrappedEntity.getContent());
+        }
+    }
+
+    /**
+     * Totals for one logical endpoint at the moment snapshot() was called.
+     * Latencies are in milliseconds and include any retries and back off.
+     */
+    public static class Snapshot {
+        private final String            endpoint;
+        private final long              requests, retries, requestBytes, responseBytes;
+        private final Map<String, Long> statusCounts;
+        private final double            meanMillis, p50Millis, p90Millis, p99Millis,
+                                        p999Millis, maxMillis;
+
+        Snapshot(String endpoint, long requests, long retries, long requestBytes,
+                long responseBytes, Map<String, Long> statusCounts, double meanMillis,
+                double p50Millis, double p90Millis, double p99Millis, double p999Millis,
+                double maxMillis) {
+            this.endpoint = endpoint;
+            this.requests = requests;
+            this.retries = retries;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.statusCounts = Collections.unmodifiableMap(statusCounts);
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.p999Millis = p999Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        /**
+         * @return calls by final status class: "2xx", "4xx" and so on, with
+         *         calls that never got a response under "failed" and those
+         *         cut short by a deadline or a faster hedge under "aborted"
+         */
+        public Map<String, Long> getStatusCounts() {
+            return statusCounts;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + ": " + requests + " calls, " + retries + " retries, " +
+                    statusCounts + ", " + requestBytes + "B out, " + responseBytes +
+                    "B in, p50 " + p50Millis + "ms, p99 " + p99Millis + "ms, max " +
+                    maxMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.Map;
+
+/**
+ * JMX view of RequestMetrics, registered as com.socrata:type=RequestMetrics
+ */
+public interface RequestMetricsMXBean {
+    /**
+     * @return the totals for each logical endpoint, e.g. "views" or "rows"
+     */
+    Map<String, RequestMetrics.Snapshot> getEndpoints();
+
+    /**
+     * @return calls made across all endpoints
+     */
+    long getRequestCount();
+
+    /**
+     * @return calls that ended without any response across all endpoints
+     */
+    long getFailureCount();
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    void reset();
+}
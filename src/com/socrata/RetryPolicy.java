@@ -0,0 +1,215 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.Date;
+import java.util.ResourceBundle;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Decides whether a failed request may be sent again, and how long to
+ * wait before doing so.
+ *
+ * Failures where the server cannot have acted on the request (refused
+ * connections, 429 and 503 responses) are retried for any method whose
+ * body can be replayed. Failures where it might have acted (dropped
+ * connections, read timeouts, 502 and 504 responses) are only retried for
+ * idempotent methods. Everything else is fatal.
+ */
+class RetryPolicy {
+    static final int  DEFAULT_MAX_RETRIES = 3;
+    static final long DEFAULT_BASE_DELAY  = 200;
+    static final long DEFAULT_MAX_DELAY   = 10000;
+
+    /** Returned by the delay methods when the failure should not be retried */
+    static final long NO_RETRY = -1;
+
+    private final int  maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxRetries how many times a request may be resent
+     * @param baseDelay milliseconds to back off after the first failure
+     * @param maxDelay the longest a single back off may last, in milliseconds
+     */
+    RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Builds a policy from the retry_* settings
+     * @param properties the bundle to read from
+     * @return the configured policy
+     */
+    static RetryPolicy fromProperties(ResourceBundle properties) {
+        return new RetryPolicy(
+                ApiBase.intSetting(properties, "max_retries", DEFAULT_MAX_RETRIES),
+                ApiBase.intSetting(properties, "retry_base_delay", (int) DEFAULT_BASE_DELAY),
+                ApiBase.intSetting(properties, "retry_max_delay", (int) DEFAULT_MAX_DELAY));
+    }
+
+    /**
+     * Works out the back off after a response with a non-200 status
+     * @param attempt how many times the request has already been retried
+     * @param request the request that was sent
+     * @param response what the server returned
+     * @return milliseconds to wait, or NO_RETRY
+     */
+    long delayAfter(int attempt, HttpRequestBase request, HttpResponse response) {
+        if ( attempt >= maxRetries || !isReplayable(request) ) {
+            return NO_RETRY;
+        }
+        int status = response.getStatusLine().getStatusCode();
+        switch ( status ) {
+            case 429:
+            case 503:
+                break;
+            case 502:
+            case 504:
+                if ( !isIdempotent(request) ) {
+                    return NO_RETRY;
+                }
+                break;
+            default:
+                return NO_RETRY;
+        }
+
+        long retryAfter = retryAfter(response);
+        if ( retryAfter > maxDelay ) {
+            // The server wants us gone for longer than we are willing to wait
+            return NO_RETRY;
+        }
+        return Math.max(retryAfter, backoff(attempt));
+    }
+
+    /**
+     * Works out the back off after the request failed with an exception
+     * @param attempt how many times the request has already been retried
+     * @param request the request that was sent
+     * @param ex what went wrong
+     * @return milliseconds to wait, or NO_RETRY
+     */
+    long delayAfter(int attempt, HttpRequestBase request, IOException ex) {
+        if ( attempt >= maxRetries || request.isAborted() || !isReplayable(request) ) {
+            return NO_RETRY;
+        }
+        if ( neverReachedServer(ex) ) {
+            return backoff(attempt);
+        }
+        // HttpTimeoutException is java.net.http's read timeout, see JdkTransport
+        if ( isIdempotent(request) && (ex instanceof NoHttpResponseException ||
+                ex instanceof SocketException || ex instanceof InterruptedIOException ||
+                ex instanceof HttpTimeoutException) ) {
+            return backoff(attempt);
+        }
+        return NO_RETRY;
+    }
+
+    /**
+     * @return how many times a request may be resent
+     */
+    int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Capped exponential back off with full jitter
+     * @param attempt how many times the request has already been retried
+     * @return a random delay between zero and the capped exponential value
+     */
+    long backoff(int attempt) {
+        long ceiling = baseDelay << Math.min(attempt, 30);
+        if ( ceiling <= 0 || ceiling > maxDelay ) {
+            ceiling = maxDelay;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Reads a Retry-After header given either in seconds or as an HTTP date
+     * @param response the server response
+     * @return the requested delay in milliseconds, or 0 if none was given
+     */
+    static long retryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if ( header == null ) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException ex) {
+            // Not a number of seconds, so it should be a date
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param request a request
+     * @return whether sending the request twice has the same effect as once
+     */
+    static boolean isIdempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) ||
+                "PUT".equals(method) || "DELETE".equals(method) ||
+                "OPTIONS".equals(method);
+    }
+
+    /**
+     * @param request a request
+     * @return whether the request body, if any, can be written again
+     */
+    static boolean isReplayable(HttpRequestBase request) {
+        if ( !(request instanceof HttpEntityEnclosingRequest) ) {
+            return true;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    private static boolean neverReachedServer(IOException ex) {
+        return ex instanceof ConnectException || ex instanceof ConnectTimeoutException ||
+                ex instanceof HttpConnectTimeoutException || ex instanceof NoRouteToHostException;
+    }
+}
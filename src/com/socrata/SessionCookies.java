@@ -0,0 +1,121 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * The cookies the API servers have set for one Socrata object, such as its
+ * session id. Sending them back lets the server recognise the session
+ * instead of checking the credentials again on every write.
+ *
+ * Every endpoint of the object's pool serves the same site, so cookies are
+ * kept by name only; domain and path attributes are ignored. Values are
+ * opaque: they are sent back exactly as the server set them.
+ */
+class SessionCookies {
+    private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+    /**
+     * Adds a Cookie header carrying every live cookie, if there are any
+     * @param request the request about to be sent
+     */
+    synchronized void addTo(HttpRequest request) {
+        request.removeHeaders("Cookie");
+        if ( cookies.isEmpty() ) {
+            return;
+        }
+        StringBuilder header = new StringBuilder();
+        for ( Map.Entry<String, String> cookie : cookies.entrySet() ) {
+            if ( header.length() > 0 ) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        request.addHeader("Cookie", header.toString());
+    }
+
+    /**
+     * Stores, replaces or deletes cookies from the response's Set-Cookie headers
+     * @param response the response just received
+     */
+    synchronized void update(HttpResponse response) {
+        for ( Header header : response.getHeaders("Set-Cookie") ) {
+            String[] parts = header.getValue().split(";");
+            int equals = parts[0].indexOf('=');
+            String name = equals < 0 ? "" : parts[0].substring(0, equals).trim();
+            if ( name.length() == 0 ) {
+                Logger.getLogger(SessionCookies.class.getName()).log(Level.FINE,
+                        "Ignoring malformed cookie " + header.getValue());
+                continue;
+            }
+            if ( isExpired(parts) ) {
+                cookies.remove(name);
+            }
+            else {
+                cookies.put(name, parts[0].substring(equals + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * @param parts the Set-Cookie value split at ';', name=value first
+     * @return true if the cookie's Max-Age or, failing that, its Expires
+     *         attribute says it should be deleted
+     */
+    private static boolean isExpired(String[] parts) {
+        String maxAge = null, expires = null;
+        for ( int i = 1; i < parts.length; i++ ) {
+            int equals = parts[i].indexOf('=');
+            if ( equals < 0 ) {
+                continue;
+            }
+            String key = parts[i].substring(0, equals).trim();
+            if ( "max-age".equalsIgnoreCase(key) ) {
+                maxAge = parts[i].substring(equals + 1).trim();
+            }
+            else if ( "expires".equalsIgnoreCase(key) ) {
+                expires = parts[i].substring(equals + 1).trim();
+            }
+        }
+        try {
+            if ( maxAge != null ) {
+                return Long.parseLong(maxAge) <= 0;
+            }
+            if ( expires != null ) {
+                return DateUtils.parseDate(expires).before(new Date());
+            }
+        }
+        catch (NumberFormatException ex) {
+            // Treat as a session cookie
+        }
+        catch (DateParseException ex) {
+            // Treat as a session cookie
+        }
+        return false;
+    }
+}
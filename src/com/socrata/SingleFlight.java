@@ -0,0 +1,89 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical concurrent calls: while one caller is fetching a
+ * key, everyone else asking for the same key waits for and shares its
+ * result instead of issuing their own request.
+ */
+class SingleFlight {
+    private static final SingleFlight SHARED = new SingleFlight();
+
+    private final ConcurrentMap<String, FutureTask<JsonPayload>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<JsonPayload>>();
+
+    /**
+     * @return the process-wide instance
+     */
+    static SingleFlight shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs the call on the current thread, unless an identical call is
+     * already in flight, in which case waits for that one instead
+     * @param key identifies identical calls
+     * @param call the work to do
+     * @return the (shared) result of the call
+     */
+    JsonPayload execute(String key, Callable<JsonPayload> call) {
+        FutureTask<JsonPayload> task = new FutureTask<JsonPayload>(call);
+        FutureTask<JsonPayload> existing = inFlight.putIfAbsent(key, task);
+        if ( existing == null ) {
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.remove(key, task);
+            }
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException ex) {
+            if ( ex.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if ( ex.getCause() instanceof Error ) {
+                throw (Error) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * @return how many distinct calls are currently in flight
+     */
+    int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,127 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * Time limits applied to each call made by a Socrata object. All values
+ * are in milliseconds; zero means no limit.
+ *
+ * An operation such as "rows" can have limits of its own, set with
+ * ApiBase.setTimeouts(String, Timeouts) or with settings named after it,
+ * e.g. rows_socket_timeout.
+ */
+public final class Timeouts {
+    static final int  DEFAULT_CONNECT_TIMEOUT = 10000;
+    static final int  DEFAULT_SOCKET_TIMEOUT  = 60000;
+    static final long DEFAULT_REQUEST_TIMEOUT = 0;
+
+    private static final String[] SETTINGS = { "connect_timeout", "socket_timeout", "request_timeout" };
+
+    private final int  connectTimeout;
+    private final int  socketTimeout;
+    private final long requestTimeout;
+
+    /**
+     * @param connectTimeout how long to wait for a pooled connection and
+     *        for the TCP connect
+     * @param socketTimeout how long a read may block without data arriving
+     * @param requestTimeout total budget for a call, including retries and
+     *        back off, after which the request is aborted
+     */
+    public Timeouts(int connectTimeout, int socketTimeout, long requestTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Reads connect_timeout, socket_timeout and request_timeout
+     * @param properties the bundle to read from
+     * @return the configured timeouts
+     */
+    static Timeouts fromProperties(ResourceBundle properties) {
+        return fromProperties(properties, "", new Timeouts(DEFAULT_CONNECT_TIMEOUT,
+                DEFAULT_SOCKET_TIMEOUT, DEFAULT_REQUEST_TIMEOUT));
+    }
+
+    /**
+     * Reads the per-operation limits: for each operation with any of
+     * &lt;operation&gt;_connect_timeout, _socket_timeout or _request_timeout
+     * set, those values, with the general ones filling the rest
+     * @param properties the bundle to read from
+     * @param defaults the general limits from fromProperties()
+     * @return the limits by operation name, possibly empty
+     */
+    static Map<String, Timeouts> operationsFromProperties(ResourceBundle properties, Timeouts defaults) {
+        if ( properties == null ) {
+            return Collections.emptyMap();
+        }
+        Map<String, Timeouts> operations = new HashMap<String, Timeouts>();
+        for ( String key : properties.keySet() ) {
+            for ( String setting : SETTINGS ) {
+                if ( key.endsWith("_" + setting) ) {
+                    String operation = key.substring(0, key.length() - setting.length() - 1);
+                    if ( !operations.containsKey(operation) ) {
+                        operations.put(operation, fromProperties(properties, operation + "_", defaults));
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableMap(operations);
+    }
+
+    private static Timeouts fromProperties(ResourceBundle properties, String prefix, Timeouts defaults) {
+        return new Timeouts(
+                ApiBase.intSetting(properties, prefix + "connect_timeout", defaults.connectTimeout),
+                ApiBase.intSetting(properties, prefix + "socket_timeout", defaults.socketTimeout),
+                ApiBase.intSetting(properties, prefix + "request_timeout", (int) defaults.requestTimeout));
+    }
+
+    /**
+     * @return the connect timeout in milliseconds
+     */
+    public int connectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return the socket read timeout in milliseconds
+     */
+    public int socketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * @return the total per-call budget in milliseconds
+     */
+    public long requestTimeout() {
+        return requestTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return "Timeouts(connect=" + connectTimeout + "ms, socket=" + socketTimeout +
+                "ms, request=" + requestTimeout + "ms)";
+    }
+}
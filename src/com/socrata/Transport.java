@@ -0,0 +1,57 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+import java.io.IOException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends HTTP requests on behalf of ApiBase. Every call to the API, including
+ * batch requests and file uploads, goes through the object's transport.
+ *
+ * Requests and responses are Apache httpclient objects whichever library
+ * does the sending. Connect and read timeouts are taken from the request's
+ * params, and an implementation must honour HttpRequestBase.abort() by
+ * failing the call with an IOException.
+ *
+ * @see ApiBase#setTransport(Transport)
+ */
+public interface Transport {
+    /**
+     * Sends a request and waits for the response headers
+     * @param target the host to send the request to
+     * @param request the request; its URI may be absolute or relative
+     * @param context holds the credentials provider and cookie store
+     * @return the response, whose entity the caller must consume
+     * @throws IOException if the request failed or was aborted
+     */
+    HttpResponse execute(HttpHost target, HttpRequestBase request, HttpContext context)
+            throws IOException;
+
+    /**
+     * Opens connections to a host ahead of time, for warm-up
+     * @param target the host to connect to
+     * @param connections how many connections are wanted
+     * @param timeout connect timeout in milliseconds
+     * @return how many connections were opened
+     */
+    int open(HttpHost target, int connections, int timeout);
+}
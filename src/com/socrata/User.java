@@ -23,8 +23,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 /**
@@ -45,13 +47,25 @@ public class User extends ApiBase {
         this.username = username;
     }
 
+    /**
+     * Associates a username with their Socrata profile, sharing an
+     * existing configuration
+     * @param config configuration from an existing Socrata object
+     * @param username The name or UID of the user
+     */
+    public User(ClientConfig config, String username) {
+        super(config);
+
+        this.username = username;
+    }
+
     /**
      * Gets all the datasets belonging to a user
      * @return A list of Datasets belonging to this user
      */
     public List<Dataset> datasets() {
         HttpGet request = new HttpGet(httpBase() + "/users/" + username + "/views.json");
-        JsonPayload response = performRequest(request);
+        JsonPayload response = performRequest(request, "datasets");
         if ( isErroneous(response) ) {
             log(Level.SEVERE, "Could not fetch datasets for user '" + username + "'", null);
             return null;
@@ -61,7 +75,7 @@ public class User extends ApiBase {
         List<Dataset> sets = new LinkedList<Dataset>();
         
         for( int i = 0; i < jsonSets.length(); i++ ) {
-            Dataset set = new Dataset(this.properties);
+            Dataset set = new Dataset(this.config);
             try {
                 JSONObject jsonSet = jsonSets.getJSONObject(i);
                 String setUID = jsonSet.getString("id");
@@ -75,6 +89,28 @@ public class User extends ApiBase {
 
         return sets;
     }
+
+    /**
+     * Fetches the metadata of every dataset belonging to this user, in
+     * parallel on the fan-out executor
+     * @return metadata for each dataset, or null if the list could not be fetched
+     */
+    public List<JSONObject> metadata() {
+        List<Dataset> sets = datasets();
+        if ( sets == null ) {
+            return null;
+        }
+
+        List<Callable<JSONObject>> tasks = new ArrayList<Callable<JSONObject>>(sets.size());
+        for ( final Dataset set : sets ) {
+            tasks.add(new Callable<JSONObject>() {
+                public JSONObject call() {
+                    return set.metadata();
+                }
+            });
+        }
+        return Workers.invokeAll(tasks);
+    }
     
 
 }
@@ -0,0 +1,147 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Remembers the ETag and Last-Modified validators of GET responses so
+ * that repeat requests can be made conditional. When the server answers
+ * 304 Not Modified the previously parsed payload is returned instead.
+ *
+ * Cached payloads are shared between callers and must not be modified.
+ * The cache is bounded by entry count and by the total size of the cached
+ * bodies, so a few huge rows() responses cannot pin hundreds of MB; a
+ * body larger than the whole budget is not cached at all.
+ */
+class ValidatorCache {
+    private static ValidatorCache shared;
+
+    // In access order, so the eldest entry is the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final int                maxEntries;
+    private final long               maxBytes;
+    private long                     bytes;
+
+    private ValidatorCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the process-wide cache, creating it on first use
+     * @param properties settings used only when creating the cache
+     * @return the shared cache, or null if validator_cache_entries or
+     *         validator_cache_bytes is 0
+     */
+    static synchronized ValidatorCache shared(ResourceBundle properties) {
+        if ( shared == null ) {
+            int maxEntries = ApiBase.intSetting(properties, "validator_cache_entries", 1000);
+            int maxBytes = ApiBase.intSetting(properties, "validator_cache_bytes",
+                    32 * 1024 * 1024);
+            if ( maxEntries <= 0 || maxBytes <= 0 ) {
+                return null;
+            }
+            shared = new ValidatorCache(maxEntries, maxBytes);
+        }
+        return shared;
+    }
+
+    /**
+     * @param key identifies the URL and the credentials it was fetched with
+     * @return the cached entry, or null
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores a payload if the response carried any validators and the body
+     * fits in the cache, evicting the least recently used entries to make room
+     * @param key identifies the URL and the credentials it was fetched with
+     * @param response the 200 response
+     * @param payload the parsed body
+     */
+    void put(String key, HttpResponse response, JsonPayload payload) {
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        if ( (etag == null && lastModified == null) || payload.size() > maxBytes ) {
+            return;
+        }
+        Entry entry = new Entry(etag == null ? null : etag.getValue(),
+                lastModified == null ? null : lastModified.getValue(), payload);
+        synchronized ( this ) {
+            Entry replaced = entries.put(key, entry);
+            if ( replaced != null ) {
+                bytes -= replaced.payload.size();
+            }
+            bytes += payload.size();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while ( entries.size() > maxEntries || bytes > maxBytes ) {
+                bytes -= eldest.next().payload.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops an entry, e.g. because a write made it stale
+     * @param key identifies the URL and the credentials it was fetched with
+     */
+    synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if ( removed != null ) {
+            bytes -= removed.payload.size();
+        }
+    }
+
+    /**
+     * A cached response and the validators to revalidate it with
+     */
+    static class Entry {
+        final String      etag;
+        final String      lastModified;
+        final JsonPayload payload;
+
+        Entry(String etag, String lastModified, JsonPayload payload) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.payload = payload;
+        }
+
+        /**
+         * Makes a request conditional on the cached validators
+         * @param request the GET about to be sent
+         */
+        void addConditions(HttpRequestBase request) {
+            if ( etag != null ) {
+                request.setHeader("If-None-Match", etag);
+            }
+            if ( lastModified != null ) {
+                request.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.socrata;
+
+/*
+
+Copyright (c) 2010 Socrata.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the executors that asynchronous and fan-out Socrata calls run on.
+ *
+ * Fan-out helpers such as User.metadata() and Dataset.addRows() normally
+ * share the fixed worker pool. With virtual threads enabled they instead
+ * start one virtual thread per request, so thousands of blocking calls can
+ * be in flight without as many platform threads. ApiBase.performRequest
+ * holds no monitors while it waits on the network, so it does not pin the
+ * carrier thread.
+ */
+public final class Workers {
+    private static final int DEFAULT_THREADS =
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService          defaultExecutor;
+    private static ExecutorService          asyncExecutor;
+    private static ExecutorService          hedgeExecutor;
+    private static ExecutorService          batchExecutor;
+    private static ExecutorService          probeExecutor;
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService          virtualExecutor;
+    private static boolean                  virtualThreads;
+
+    private Workers() {
+    }
+
+    /**
+     * Returns the fixed pool fan-out helpers share, creating it on first use.
+     * Tasks on it may block, but must not wait on other work submitted to
+     * it, or a full pool deadlocks.
+     * @return the shared executor
+     */
+    public static synchronized ExecutorService defaultExecutor() {
+        if ( defaultExecutor == null ) {
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS,
+                    daemonThreadFactory("socrata-worker"));
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the executor AsyncDataset and AsyncUser run calls on unless
+     * given another. Each call blocks its thread while it waits on the
+     * network, so the fixed pool of 2 threads per core (at least 4) is
+     * also the number of asynchronous calls in flight at once. With
+     * virtual threads on, each call gets its own virtual thread instead
+     * and the limit is the connection pool. It is separate from the
+     * fan-out pool because calls such as User.metadata() wait on fan-out
+     * work themselves.
+     * @return the executor for asynchronous calls
+     */
+    public static synchronized ExecutorService asyncExecutor() {
+        if ( virtualThreads ) {
+            return virtualExecutor;
+        }
+        if ( asyncExecutor == null ) {
+            asyncExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS,
+                    daemonThreadFactory("socrata-async"));
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Returns the pool hedged copies of slow GETs run on. It never queues:
+     * when every thread is busy a submission is rejected and the request
+     * simply goes unhedged.
+     * @return the shared executor for hedges
+     */
+    static synchronized ExecutorService hedgeExecutor() {
+        if ( hedgeExecutor == null ) {
+            hedgeExecutor = new ThreadPoolExecutor(0, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), daemonThreadFactory("socrata-hedge"));
+        }
+        return hedgeExecutor;
+    }
+
+    /**
+     * Returns the pool batch flushes send their lanes on. Flushes start on
+     * the fan-out pool, so their lanes must not wait on it too. When every
+     * thread is busy a lane runs on the flushing thread itself.
+     * @return the shared executor for batch lanes
+     */
+    static synchronized ExecutorService batchExecutor() {
+        if ( batchExecutor == null ) {
+            batchExecutor = new ThreadPoolExecutor(0, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), daemonThreadFactory("socrata-batch"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Returns the pool endpoint health probes run on, so their blocking
+     * requests stay off the timer thread. Idle threads exit after a minute.
+     * @return the shared executor for probes
+     */
+    static synchronized ExecutorService probeExecutor() {
+        if ( probeExecutor == null ) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    daemonThreadFactory("socrata-probe"));
+            executor.allowCoreThreadTimeOut(true);
+            probeExecutor = executor;
+        }
+        return probeExecutor;
+    }
+
+    /**
+     * @return a single daemon thread for timers such as request deadlines
+     */
+    static synchronized ScheduledExecutorService scheduler() {
+        if ( scheduler == null ) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    daemonThreadFactory("socrata-timer"));
+            // Most deadlines are cancelled long before they fire
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Replaces the default executor. The previous one is not shut down.
+     * @param executor the executor to run asynchronous calls on
+     */
+    public static synchronized void setDefaultExecutor(ExecutorService executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Turns the virtual-thread execution mode on or off. On runtimes
+     * without virtual threads the fixed worker pool keeps being used.
+     * @param enabled whether fan-out and asynchronous calls should run on
+     *        virtual threads
+     */
+    public static synchronized void setVirtualThreads(boolean enabled) {
+        if ( enabled && virtualExecutor == null ) {
+            virtualExecutor = newVirtualThreadExecutor();
+        }
+        virtualThreads = enabled && virtualExecutor != null;
+    }
+
+    /**
+     * @return whether fan-out work currently runs on virtual threads
+     */
+    public static synchronized boolean virtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return the executor fan-out helpers should submit their work to
+     */
+    static synchronized ExecutorService fanOutExecutor() {
+        return virtualThreads ? virtualExecutor : defaultExecutor();
+    }
+
+    /**
+     * Runs every task on the fan-out executor and waits for all of them
+     * @param tasks the work to perform
+     * @return the result of each task, in order; null where a task failed
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+        return invokeAll(tasks, fanOutExecutor());
+    }
+
+    /**
+     * Runs every task on the given executor and waits for all of them
+     * @param tasks the work to perform
+     * @param executor where to run them; must not be the pool the caller runs on
+     * @return the result of each task, in order; null where a task failed
+     */
+    static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, ExecutorService executor) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for ( Callable<T> task : tasks ) {
+            futures.add(executor.submit(task));
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        for ( Future<T> future : futures ) {
+            try {
+                results.add(future.get());
+            }
+            catch (ExecutionException ex) {
+                Logger.getLogger(Workers.class.getName()).log(Level.SEVERE,
+                        "Fan-out task failed", ex.getCause());
+                results.add(null);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for ( Future<T> pending : futures ) {
+                    pending.cancel(true);
+                }
+                break;
+            }
+        }
+        while ( results.size() < futures.size() ) {
+            results.add(null);
+        }
+        return results;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor(), which only
+     * exists on newer runtimes
+     * @return a virtual-thread-per-task executor, or null if unsupported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (Exception ex) {
+            Logger.getLogger(Workers.class.getName()).log(Level.WARNING,
+                    "Virtual threads are not available on this runtime, " +
+                    "using the shared worker pool instead");
+            return null;
+        }
+    }
+
+    /**
+     * Creates daemon threads with sequentially numbered names
+     * @param prefix the start of every thread name
+     * @return a thread factory
+     */
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}